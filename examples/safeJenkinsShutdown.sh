@@ -18,25 +18,10 @@ java -jar jenkins-cli.jar \
      safe-quiet-down -a -m "Jenkins is going to shutdown for maintenance"
 
 echo "Waiting for Jenkins jobs to finish..."
-
-function finishedSafeQuietDown() {
-    java -jar jenkins-cli.jar \
-         -s ${JENKINS_URL} \
-         -auth ${USER}:${TOKEN} \
-         finished-safe-quiet-down
-}
-
-NUM_OKS=0
-while [[ ${NUM_OKS} -lt 3 ]]; do
-    sleep 10s
-    if finishedSafeQuietDown; then
-        echo "There seem to be no jobs left!"
-        let NUM_OKS=${NUM_OKS}+1
-    else
-        echo "... still working ..."
-        NUM_OKS=0
-    fi
-done
+java -jar jenkins-cli.jar \
+     -s ${JENKINS_URL} \
+     -auth ${USER}:${TOKEN} \
+     wait-safe-quiet-down-finished -w 30
 
 echo "Everything finished. Shutting down Jenkins now!"
 java -jar jenkins-cli.jar \
@@ -0,0 +1,176 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.security.SecurityContextExecutorService;
+
+/**
+ * The single executor running the activation tasks of the safe quietdown mode.
+ * It uses at most one daemon thread that terminates when idle, and it is shut
+ * down when Jenkins stops. Only the latest activation is relevant, so the
+ * oldest waiting task is discarded if too many activations are queued up.
+ */
+public final class ActivationExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(ActivationExecutor.class.getName());
+
+    /** Maximum number of waiting tasks. */
+    private static final int MAX_QUEUED_TASKS = 16;
+
+    /** Seconds an idle thread is kept alive. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** Seconds to wait for a running task on shutdown. */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    /** The thread pool, created on first use. Guarded by the class. */
+    private static ThreadPoolExecutor pool;
+
+    /** The pool wrapped to run the tasks with the security context of the caller. */
+    private static ExecutorService service;
+
+    /** Time in milliseconds the last task waited before it was started. */
+    private static final AtomicLong LAST_QUEUE_LATENCY = new AtomicLong();
+
+    /** Time in milliseconds the last task took to run. */
+    private static final AtomicLong LAST_DURATION = new AtomicLong();
+
+    /** Number of completed tasks. */
+    private static final AtomicLong COMPLETED_TASKS = new AtomicLong();
+
+    /**
+     * Hiding utility class constructor.
+     */
+    private ActivationExecutor() { }
+
+    /**
+     * Submits a task and records its latency and duration.
+     * @param task the task to run
+     */
+    public static void submit(final Runnable task) {
+        final long submitted = System.nanoTime();
+        getService().execute(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                LAST_QUEUE_LATENCY.set(TimeUnit.NANOSECONDS.toMillis(started - submitted));
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Safe quietdown activation task failed.", e);
+                } finally {
+                    long duration = System.nanoTime() - started;
+                    LAST_DURATION.set(TimeUnit.NANOSECONDS.toMillis(duration));
+                    SafeQuietdownMetrics.recordActivation(duration);
+                    COMPLETED_TASKS.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the number of tasks waiting to be run.
+     * @return the number of waiting tasks
+     */
+    public static synchronized int getQueueDepth() {
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Gets the time the last task waited before it was started.
+     * @return the latency in milliseconds
+     */
+    public static long getLastQueueLatencyMillis() {
+        return LAST_QUEUE_LATENCY.get();
+    }
+
+    /**
+     * Gets the time the last task took to run.
+     * @return the duration in milliseconds
+     */
+    public static long getLastDurationMillis() {
+        return LAST_DURATION.get();
+    }
+
+    /**
+     * Gets the number of completed tasks.
+     * @return the number of completed tasks
+     */
+    public static long getCompletedTasks() {
+        return COMPLETED_TASKS.get();
+    }
+
+    /**
+     * Shuts down the executor when Jenkins stops.
+     * @throws InterruptedException if interrupted while waiting for the running task
+     */
+    @Terminator
+    public static void shutdown() throws InterruptedException {
+        ThreadPoolExecutor terminatingPool;
+        synchronized (ActivationExecutor.class) {
+            terminatingPool = pool;
+            pool = null;
+            service = null;
+        }
+        if (terminatingPool != null) {
+            terminatingPool.shutdown();
+            if (!terminatingPool.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.WARNING, "Safe quietdown activation task did not finish in time.");
+                terminatingPool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Gets the executor service, creating it if necessary.
+     * @return the executor service
+     */
+    private static synchronized ExecutorService getService() {
+        if (service == null) {
+            pool = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(MAX_QUEUED_TASKS),
+                                          new NamingThreadFactory(new DaemonThreadFactory(),
+                                                                  "SafeQuietdown activation"),
+                                          new ThreadPoolExecutor.DiscardOldestPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            service = new SecurityContextExecutorService(pool);
+        }
+        return service;
+    }
+}
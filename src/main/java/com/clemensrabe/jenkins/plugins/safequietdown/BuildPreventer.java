@@ -25,13 +25,14 @@
 
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import hudson.Extension;
 import hudson.model.Cause;
+import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
 
@@ -45,54 +46,266 @@ public class BuildPreventer extends QueueTaskDispatcher {
 
     private static final Logger LOGGER = Logger.getLogger(BuildPreventer.class.getName());
 
+    /** Cached management link to avoid the extension list lookup on every call. */
+    private volatile SafeQuietdownManagementLink managementLink;
+
+    /** Cached queue index to avoid the extension list lookup on every call. */
+    private volatile QueueIndex queueIndex;
+
+    /** Cached configuration to avoid the extension list lookup on every call. */
+    private volatile SafeQuietdownConfiguration configuration;
+
+    /**
+     * Ids of the queue items blocked in the generation {@link #blockedGeneration}.
+     * Blocked items are answered from this set until the generation changes.
+     */
+    private final ConcurrentLongHashSet blockedIds = new ConcurrentLongHashSet();
+
+    /** Generation of the management link the blocked ids are valid for. */
+    private volatile long blockedGeneration = -1;
+
     /**
      * Handles prevention of builds for safe quietdown on the Jenkins master.
+     * If the quietdown is restricted to some nodes, the items are blocked in
+     * {@link #canTake(Node, Queue.BuildableItem)} instead.
      * @param item QueueItem to build
      * @return CauseOfBlockage if a build is prevented, otherwise null
      */
     @Override
     public CauseOfBlockage canRun(final Queue.Item item) {
-        CauseOfBlockage blockage = null;
-
-        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
-
-        if (managementLink.isQuietdownActive()) {
-            if (!managementLink.isPermittedQueueId(item.getId())) {
-                Set<Long> upstreamQueueIds = QueueUtils.getUpstreamQueueIds(item);
-
-                if (managementLink.isAnyPermittedQueueId(upstreamQueueIds)) {
-                    managementLink.addPermittedQueueId(item.getId());
-                    LOGGER.log(Level.FINE, "Allowing downstream project {0} with queue id {1}.",
-                               new Object[] {item.task.getFullDisplayName(), item.getId()});
-                } else {
-                    if ((item.task.getOwnerTask() != item.task)
-                        && (item.task.getOwnerTask() instanceof WorkflowJob)) {
-                        managementLink.addPermittedQueueId(item.getId());
-                        LOGGER.log(Level.FINE, "Allowing pipeline step {0} with queue id {1}.",
-                                   new Object[] {item.task.getFullDisplayName(), item.getId()});
-                    } else {
-                        LOGGER.log(Level.FINE, "Preventing project {0} from running during safe quiet down mode.",
-                                   item.task.getFullDisplayName());
-                        LOGGER.log(Level.FINE, "Its queue id is {0} and its upstream queue ids are:", item.getId());
-                        for (long id : upstreamQueueIds) {
-                            LOGGER.log(Level.FINE, " - {0}", id);
-                        }
-                        for (Cause cause : item.getCauses()) {
-                            LOGGER.log(Level.FINE, "Cause: {0}", cause.getClass().getName());
-                        }
-                        LOGGER.log(Level.FINE, "The Queue.Item class is: {0}", item.getClass().getName());
-                        LOGGER.log(Level.FINE, "The Queue.Task class is: {0}", item.task.getClass().getName());
-                        if (item.task.getOwnerTask() != item.task) {
-                            LOGGER.log(Level.FINE, "The Owner class is:      {0}",
-                                       item.task.getOwnerTask().getClass().getName());
-                        }
-
-                        blockage = new SafeQuietdownBlockage();
-                    }
-                }
+        SafeQuietdownManagementLink link = getManagementLink();
+        if (link.getState() == SafeQuietdownState.INACTIVE) {
+            // Fast path: the invocation is only counted, the decision is not timed
+            SafeQuietdownMetrics.recordNotActive();
+            return null;
+        }
+        SafeQuietdownMetrics.recordInvocation();
+        if (link.getScope() != null) {
+            return null;
+        }
+        return dispatch(item);
+    }
+
+    /**
+     * Handles prevention of builds on the nodes the safe quietdown is
+     * restricted to. Other nodes are not affected.
+     * @param node the node the item would be assigned to
+     * @param item QueueItem to build
+     * @return CauseOfBlockage if a build is prevented, otherwise null
+     */
+    @Override
+    public CauseOfBlockage canTake(final Node node, final Queue.BuildableItem item) {
+        SafeQuietdownManagementLink link = getManagementLink();
+        if (link.getState() == SafeQuietdownState.INACTIVE) {
+            SafeQuietdownMetrics.recordNotActive();
+            return null;
+        }
+        SafeQuietdownMetrics.recordInvocation();
+        if ((link.getScope() == null) || !link.isInScope(node)) {
+            return null;
+        }
+        return dispatch(item);
+    }
+
+    /**
+     * Decides whether a queue item is permitted to run and logs the decision.
+     * @param item QueueItem to build
+     * @return CauseOfBlockage if a build is prevented, otherwise null
+     */
+    private CauseOfBlockage dispatch(final Queue.Item item) {
+        long start = System.nanoTime();
+        DispatchDecision decision = decide(item);
+        SafeQuietdownMetrics.recordDecision(decision, System.nanoTime() - start);
+
+        // The diagnostics are only collected if they are really logged
+        if (LOGGER.isLoggable(Level.FINE)) {
+            String message = describeDecision(decision, item);
+            if (message != null) {
+                LOGGER.fine(message);
             }
         }
 
-        return blockage;
+        if (decision.isBlocked()) {
+            return getConfiguration().getBlockage();
+        }
+        return null;
+    }
+
+    /**
+     * Decides whether a queue item is permitted to run. Permitted downstream
+     * builds and pipeline steps are added to the permitted queue ids.
+     * @param item the queue item
+     * @return the decision
+     */
+    DispatchDecision decide(final Queue.Item item) {
+        SafeQuietdownManagementLink link = getManagementLink();
+
+        // Fast path: nothing to do if the quietdown is not active or the item is already permitted
+        SafeQuietdownState state = link.getState();
+        if (state == SafeQuietdownState.INACTIVE) {
+            return DispatchDecision.NOT_ACTIVE;
+        }
+        if (state == SafeQuietdownState.ACTIVATING) {
+            // The permitted queue ids are not known yet, so block everything until the activation is done
+            return DispatchDecision.ACTIVATING;
+        }
+        if (link.isPermittedQueueId(item.getId())) {
+            return DispatchDecision.PERMITTED;
+        }
+
+        // Blocked items stay blocked until a permitted queue id is added or the state changes
+        long generation = link.getGeneration();
+        if ((generation == blockedGeneration) && blockedIds.contains(item.getId())) {
+            return DispatchDecision.BLOCKED;
+        }
+
+        DispatchDecision decision = decideUncached(item, link);
+        if (decision.isBlocked()) {
+            rememberBlocked(item.getId(), generation);
+        } else {
+            link.addPermittedQueueId(item.getId());
+        }
+        return decision;
+    }
+
+    /**
+     * Decides whether a queue item that is neither permitted nor remembered
+     * as blocked is permitted to run. Nothing is changed, neither the
+     * permitted queue ids nor the remembered blocked items. For a queued job
+     * whose upstream builds are resolved by the index, this does not allocate.
+     * Pipeline steps are permitted, but only those of permitted pipeline
+     * builds if the quietdown is restricted to some nodes.
+     * @param item the queue item
+     * @param link the management link holding the permitted queue ids
+     * @return the decision, either {@link DispatchDecision#DOWNSTREAM},
+     *         {@link DispatchDecision#PIPELINE_STEP} or {@link DispatchDecision#BLOCKED}
+     */
+    DispatchDecision decideUncached(final Queue.Item item, final SafeQuietdownManagementLink link) {
+        if (QueueUtils.hasPermittedUpstreamQueueId(item, link, getQueueIndex())) {
+            return DispatchDecision.DOWNSTREAM;
+        }
+
+        if ((item.task.getOwnerTask() != item.task)
+            && (item.task.getOwnerTask() instanceof WorkflowJob)
+            && ((link.getScope() == null) || isOwnerPermitted(item, link))) {
+            return DispatchDecision.PIPELINE_STEP;
+        }
+        return DispatchDecision.BLOCKED;
+    }
+
+    /**
+     * Checks if the pipeline build owning a pipeline step is permitted. Only
+     * the steps of permitted pipelines may run on the drained nodes of a
+     * restricted quietdown, pipelines started on other nodes must not put
+     * their steps onto the drained nodes.
+     * @param item the queue item of the pipeline step
+     * @param link the management link holding the permitted queue ids
+     * @return true if the owning build is permitted
+     */
+    private static boolean isOwnerPermitted(final Queue.Item item, final SafeQuietdownManagementLink link) {
+        Queue.Executable owner = item.task.getOwnerExecutable();
+        return (owner instanceof Run) && link.isPermittedQueueId(((Run<?, ?>) owner).getQueueId());
+    }
+
+    /**
+     * Remembers a blocked item. The remembered items are dropped if the
+     * generation changed since they were blocked. Decisions of an outdated
+     * generation are not remembered.
+     * @param id the queue id of the blocked item
+     * @param generation the generation the item was blocked in
+     */
+    private synchronized void rememberBlocked(final long id, final long generation) {
+        if (generation < blockedGeneration) {
+            return;
+        }
+        if (generation != blockedGeneration) {
+            blockedIds.clear();
+            blockedGeneration = generation;
+        }
+        blockedIds.add(id);
+    }
+
+    /**
+     * Forgets a queue item that left the queue.
+     * @param id the queue id of the item
+     */
+    void forget(final long id) {
+        blockedIds.remove(id);
+    }
+
+    /**
+     * Describes a decision for the diagnostic log.
+     * @param decision the decision
+     * @param item the queue item
+     * @return the description or null if the decision is not worth logging
+     */
+    static String describeDecision(final DispatchDecision decision, final Queue.Item item) {
+        switch (decision) {
+            case DOWNSTREAM:
+                return String.format("Allowing downstream project %s with queue id %d.",
+                                     item.task.getFullDisplayName(), item.getId());
+            case PIPELINE_STEP:
+                return String.format("Allowing pipeline step %s with queue id %d.",
+                                     item.task.getFullDisplayName(), item.getId());
+            case BLOCKED:
+                StringBuilder message = new StringBuilder();
+                message.append(String.format("Preventing project %s from running during safe quiet down mode.%n",
+                                             item.task.getFullDisplayName()));
+                message.append(String.format("Its queue id is %d and its upstream queue ids are:%n", item.getId()));
+                for (long id : QueueIndex.get().getUpstreamQueueIds(item)) {
+                    message.append(String.format(" - %d%n", id));
+                }
+                for (Cause cause : item.getCauses()) {
+                    message.append(String.format("Cause: %s%n", cause.getClass().getName()));
+                }
+                message.append(String.format("The Queue.Item class is: %s%n", item.getClass().getName()));
+                message.append(String.format("The Queue.Task class is: %s", item.task.getClass().getName()));
+                if (item.task.getOwnerTask() != item.task) {
+                    message.append(String.format("%nThe Owner class is:      %s",
+                                                 item.task.getOwnerTask().getClass().getName()));
+                }
+                return message.toString();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the management link, looking it up only on the first call.
+     * @return the management link singleton
+     */
+    private SafeQuietdownManagementLink getManagementLink() {
+        SafeQuietdownManagementLink link = managementLink;
+        if (link == null) {
+            link = SafeQuietdownManagementLink.get();
+            managementLink = link;
+        }
+        return link;
+    }
+
+    /**
+     * Gets the queue index, looking it up only on the first call.
+     * @return the queue index singleton
+     */
+    private QueueIndex getQueueIndex() {
+        QueueIndex index = queueIndex;
+        if (index == null) {
+            index = QueueIndex.get();
+            queueIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the configuration, looking it up only on the first call.
+     * @return the configuration singleton
+     */
+    private SafeQuietdownConfiguration getConfiguration() {
+        SafeQuietdownConfiguration config = configuration;
+        if (config == null) {
+            config = SafeQuietdownConfiguration.get();
+            configuration = config;
+        }
+        return config;
     }
 }
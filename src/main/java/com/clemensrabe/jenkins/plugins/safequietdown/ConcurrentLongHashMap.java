@@ -0,0 +1,305 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * A map from primitive long keys to objects using open addressing, the map
+ * counterpart of {@link ConcurrentLongHashSet}. Reads are lock-free and never
+ * box the key, writes are serialized by a lock on the map itself, as the
+ * maps of the queue index are written once per queue item or build but read
+ * on every dispatch. The keys {@link Long#MIN_VALUE} and
+ * {@code Long.MIN_VALUE + 1} are reserved and cannot be stored.
+ * @param <V> the type of the values
+ */
+public final class ConcurrentLongHashMap<V> {
+
+    /** Marker of an empty slot. */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /** Marker of a slot whose key was removed. */
+    private static final long REMOVED = Long.MIN_VALUE + 1;
+
+    /** Initial number of slots, must be a power of two. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Inverse of the maximum load of the table directly after a rehash. */
+    private static final int LOAD_DIVISOR_AFTER_REHASH = 4;
+
+    /** Multiplier used to spread the bits of a key over the table. */
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /** Number of bits to shift when folding the hash to an int. */
+    private static final int HASH_SHIFT = 32;
+
+    /** The slots of the map. Replaced completely on resize and clear. */
+    private volatile Table<V> table = new Table<V>(INITIAL_CAPACITY);
+
+    /** Number of entries in the map. */
+    private volatile int size;
+
+    /** Number of slots that are not empty, including removed ones. Guarded by this. */
+    private int usedSlots;
+
+    /**
+     * Gets the value of a key.
+     * @param key the key
+     * @return the value or null if the key is not contained in the map
+     */
+    public V get(final long key) {
+        Table<V> slots = table;
+        int mask = slots.keys.length() - 1;
+        int index = hash(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = slots.keys.get(index);
+            if (current == key) {
+                // Null or stale if the entry is removed concurrently, so the key is checked again
+                V value = slots.values.get(index);
+                return (slots.keys.get(index) == key) ? value : null;
+            }
+            if (current == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the key is contained in the map.
+     * @param key the key to check for
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(final long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates a value with a key.
+     * @param key the key
+     * @param value the value, must not be null
+     * @return the previous value or null if the key was not contained in the map
+     */
+    public synchronized V put(final long key, final V value) {
+        checkKey(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Null values cannot be stored.");
+        }
+        Table<V> slots = table;
+        int mask = slots.keys.length() - 1;
+        int index = hash(key) & mask;
+        int freeIndex = -1;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = slots.keys.get(index);
+            if (current == key) {
+                V previous = slots.values.get(index);
+                slots.values.set(index, value);
+                return previous;
+            }
+            if (current == EMPTY) {
+                if (freeIndex == -1) {
+                    freeIndex = index;
+                    usedSlots++;
+                }
+                break;
+            }
+            if ((current == REMOVED) && (freeIndex == -1)) {
+                freeIndex = index;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // The value is published before the key, so readers finding the key see the value
+        slots.values.set(freeIndex, value);
+        slots.keys.set(freeIndex, key);
+        size++;
+        if (usedSlots * 2 > slots.keys.length()) {
+            rehash();
+        }
+        return null;
+    }
+
+    /**
+     * Associates a value with a key if the key is not contained in the map.
+     * @param key the key
+     * @param value the value, must not be null
+     * @return the current value or null if the value was added
+     */
+    public synchronized V putIfAbsent(final long key, final V value) {
+        V current = get(key);
+        if (current != null) {
+            return current;
+        }
+        put(key, value);
+        return null;
+    }
+
+    /**
+     * Removes a key from the map.
+     * @param key the key to remove
+     * @return the removed value or null if the key was not contained in the map
+     */
+    public synchronized V remove(final long key) {
+        Table<V> slots = table;
+        int mask = slots.keys.length() - 1;
+        int index = hash(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = slots.keys.get(index);
+            if (current == key) {
+                V previous = slots.values.get(index);
+                slots.keys.set(index, REMOVED);
+                slots.values.set(index, null);
+                size--;
+                return previous;
+            }
+            if (current == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes all entries whose value matches the filter.
+     * @param filter the filter returning true for the values to remove
+     * @return the number of removed entries
+     */
+    public synchronized int removeIf(final Predicate<? super V> filter) {
+        Table<V> slots = table;
+        int removed = 0;
+        for (int i = 0; i < slots.keys.length(); i++) {
+            long current = slots.keys.get(i);
+            if ((current != EMPTY) && (current != REMOVED) && filter.test(slots.values.get(i))) {
+                slots.keys.set(i, REMOVED);
+                slots.values.set(i, null);
+                size--;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all entries from the map.
+     */
+    public synchronized void clear() {
+        table = new Table<V>(INITIAL_CAPACITY);
+        size = 0;
+        usedSlots = 0;
+    }
+
+    /**
+     * Gets the number of entries in the map.
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the map is empty.
+     * @return true if the map contains no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Rebuilds the table, dropping all removed slots and growing or shrinking
+     * it to keep the load low. The new table is filled completely before it
+     * is published, so readers always see a consistent table.
+     */
+    private void rehash() {
+        Table<V> oldSlots = table;
+        int newCapacity = INITIAL_CAPACITY;
+        while (size * LOAD_DIVISOR_AFTER_REHASH > newCapacity) {
+            newCapacity *= 2;
+        }
+        Table<V> newSlots = new Table<V>(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldSlots.keys.length(); i++) {
+            long current = oldSlots.keys.get(i);
+            if ((current != EMPTY) && (current != REMOVED)) {
+                int index = hash(current) & mask;
+                while (newSlots.keys.get(index) != EMPTY) {
+                    index = (index + 1) & mask;
+                }
+                newSlots.values.set(index, oldSlots.values.get(i));
+                newSlots.keys.set(index, current);
+            }
+        }
+        usedSlots = size;
+        table = newSlots;
+    }
+
+    /**
+     * Computes the hash of a key.
+     * @param key the key
+     * @return the hash of the key
+     */
+    private static int hash(final long key) {
+        long hash = key * HASH_MULTIPLIER;
+        return (int) (hash ^ (hash >>> HASH_SHIFT));
+    }
+
+    /**
+     * Ensures the key is not one of the reserved markers.
+     * @param key the key to check
+     */
+    private static void checkKey(final long key) {
+        if ((key == EMPTY) || (key == REMOVED)) {
+            throw new IllegalArgumentException("Key " + key + " is reserved and cannot be stored.");
+        }
+    }
+
+    /**
+     * The keys and values of the map, published together.
+     * @param <V> the type of the values
+     */
+    private static final class Table<V> {
+
+        /** The keys of the slots. */
+        private final AtomicLongArray keys;
+
+        /** The values of the slots. */
+        private final AtomicReferenceArray<V> values;
+
+        /**
+         * Constructor. Creates a table with all slots marked as empty.
+         * @param capacity the number of slots
+         */
+        Table(final int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<V>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                keys.lazySet(i, EMPTY);
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+/**
+ * A set of primitive long values using open addressing.
+ * Reads are lock-free and never box the value. Writes are striped: the
+ * values are spread by their hash over independent segments, each with its
+ * own table and lock, so threads adding different values rarely wait for
+ * each other. The values {@link Long#MIN_VALUE} and
+ * {@code Long.MIN_VALUE + 1} are reserved and cannot be stored.
+ */
+public final class ConcurrentLongHashSet {
+
+    /** Marker of an empty slot. */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /** Marker of a slot whose value was removed. */
+    private static final long REMOVED = Long.MIN_VALUE + 1;
+
+    /** Number of bits of the hash selecting the segment. */
+    private static final int SEGMENT_BITS = 4;
+
+    /** Number of segments. */
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    /** Initial number of slots of a segment, must be a power of two. */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** Inverse of the maximum load of the table directly after a rehash. */
+    private static final int LOAD_DIVISOR_AFTER_REHASH = 4;
+
+    /** Multiplier used to spread the bits of a value over the table. */
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /** Number of bits to shift when folding the hash to an int. */
+    private static final int HASH_SHIFT = 32;
+
+    /**
+     * The segments of the set. The upper bits of the hash select the segment,
+     * the lower bits the slot within its table.
+     */
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Constructor. Creates an empty set.
+     */
+    public ConcurrentLongHashSet() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Checks if the value is contained in the set.
+     * @param value the value to check for
+     * @return true if the value is in the set
+     */
+    public boolean contains(final long value) {
+        int hash = hash(value);
+        return segmentFor(hash).contains(value, hash);
+    }
+
+    /**
+     * Adds a value to the set.
+     * @param value the value to add
+     * @return true if the value was not contained in the set before
+     */
+    public boolean add(final long value) {
+        checkValue(value);
+        int hash = hash(value);
+        return segmentFor(hash).add(value, hash);
+    }
+
+    /**
+     * Removes a value from the set.
+     * @param value the value to remove
+     * @return true if the value was contained in the set
+     */
+    public boolean remove(final long value) {
+        int hash = hash(value);
+        return segmentFor(hash).remove(value, hash);
+    }
+
+    /**
+     * Adds all values of another set to this set.
+     * @param other the set to add the values from
+     */
+    public void addAll(final ConcurrentLongHashSet other) {
+        other.forEach(this::add);
+    }
+
+    /**
+     * Removes all values from the set. The segments are cleared one after
+     * the other, so values added concurrently might or might not be removed.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Gets the number of values in the set.
+     * @return the number of values
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Checks if the set is empty.
+     * @return true if the set contains no values
+     */
+    public boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.size != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls the action for each value of the set. Values added or removed
+     * concurrently might or might not be seen by the action.
+     * @param action the action to call for every value
+     */
+    public void forEach(final LongConsumer action) {
+        for (Segment segment : segments) {
+            AtomicLongArray slots = segment.table;
+            for (int i = 0; i < slots.length(); i++) {
+                long current = slots.get(i);
+                if ((current != EMPTY) && (current != REMOVED)) {
+                    action.accept(current);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the values of the set into an array. Values added or removed
+     * concurrently might or might not be contained.
+     * @return the values
+     */
+    public long[] toArray() {
+        LongStream.Builder values = LongStream.builder();
+        forEach(values::add);
+        return values.build().toArray();
+    }
+
+    /**
+     * Gets the segment of a hash.
+     * @param hash the hash of the value
+     * @return the segment
+     */
+    private Segment segmentFor(final int hash) {
+        return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    /**
+     * Creates a new table with all slots marked as empty.
+     * @param capacity the number of slots
+     * @return the new table
+     */
+    private static AtomicLongArray newTable(final int capacity) {
+        AtomicLongArray slots = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots.lazySet(i, EMPTY);
+        }
+        return slots;
+    }
+
+    /**
+     * Computes the hash of a value.
+     * @param value the value
+     * @return the hash of the value
+     */
+    private static int hash(final long value) {
+        long hash = value * HASH_MULTIPLIER;
+        return (int) (hash ^ (hash >>> HASH_SHIFT));
+    }
+
+    /**
+     * Ensures the value is not one of the reserved markers.
+     * @param value the value to check
+     */
+    private static void checkValue(final long value) {
+        if ((value == EMPTY) || (value == REMOVED)) {
+            throw new IllegalArgumentException("Value " + value + " is reserved and cannot be stored.");
+        }
+    }
+
+    /**
+     * A segment of the set with its own table. Writes are serialized by a
+     * lock on the segment.
+     */
+    private static final class Segment {
+
+        /** The slots of the segment. Replaced completely on resize and clear. */
+        private volatile AtomicLongArray table = newTable(INITIAL_CAPACITY);
+
+        /** Number of values in the segment. */
+        private volatile int size;
+
+        /** Number of slots that are not empty, including removed ones. Guarded by this. */
+        private int usedSlots;
+
+        /**
+         * Checks if the value is contained in the segment.
+         * @param value the value to check for
+         * @param hash the hash of the value
+         * @return true if the value is in the segment
+         */
+        boolean contains(final long value, final int hash) {
+            AtomicLongArray slots = table;
+            int mask = slots.length() - 1;
+            int index = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long current = slots.get(index);
+                if (current == value) {
+                    return true;
+                }
+                if (current == EMPTY) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * Adds a value to the segment.
+         * @param value the value to add
+         * @param hash the hash of the value
+         * @return true if the value was not contained in the segment before
+         */
+        synchronized boolean add(final long value, final int hash) {
+            AtomicLongArray slots = table;
+            int mask = slots.length() - 1;
+            int index = hash & mask;
+            int freeIndex = -1;
+            for (int probes = 0; probes <= mask; probes++) {
+                long current = slots.get(index);
+                if (current == value) {
+                    return false;
+                }
+                if (current == EMPTY) {
+                    if (freeIndex == -1) {
+                        freeIndex = index;
+                        usedSlots++;
+                    }
+                    break;
+                }
+                if ((current == REMOVED) && (freeIndex == -1)) {
+                    freeIndex = index;
+                }
+                index = (index + 1) & mask;
+            }
+            slots.set(freeIndex, value);
+            size++;
+            if (usedSlots * 2 > slots.length()) {
+                rehash();
+            }
+            return true;
+        }
+
+        /**
+         * Removes a value from the segment.
+         * @param value the value to remove
+         * @param hash the hash of the value
+         * @return true if the value was contained in the segment
+         */
+        synchronized boolean remove(final long value, final int hash) {
+            AtomicLongArray slots = table;
+            int mask = slots.length() - 1;
+            int index = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long current = slots.get(index);
+                if (current == value) {
+                    slots.set(index, REMOVED);
+                    size--;
+                    return true;
+                }
+                if (current == EMPTY) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * Removes all values from the segment.
+         */
+        synchronized void clear() {
+            table = newTable(INITIAL_CAPACITY);
+            size = 0;
+            usedSlots = 0;
+        }
+
+        /**
+         * Rebuilds the table, dropping all removed slots and growing or shrinking
+         * it to keep the load low. The new table is filled completely before it
+         * is published, so readers always see a consistent table.
+         */
+        private void rehash() {
+            AtomicLongArray oldSlots = table;
+            int newCapacity = INITIAL_CAPACITY;
+            while (size * LOAD_DIVISOR_AFTER_REHASH > newCapacity) {
+                newCapacity *= 2;
+            }
+            AtomicLongArray newSlots = newTable(newCapacity);
+            int mask = newCapacity - 1;
+            for (int i = 0; i < oldSlots.length(); i++) {
+                long current = oldSlots.get(i);
+                if ((current != EMPTY) && (current != REMOVED)) {
+                    int index = hash(current) & mask;
+                    while (newSlots.get(index) != EMPTY) {
+                        index = (index + 1) & mask;
+                    }
+                    newSlots.set(index, current);
+                }
+            }
+            usedSlots = size;
+            table = newSlots;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+/**
+ * The reasons for the decision of the {@link BuildPreventer} on a queue item.
+ */
+public enum DispatchDecision {
+
+    /** The safe quietdown mode is not active. */
+    NOT_ACTIVE(false),
+
+    /** The safe quietdown mode is being activated and the permitted queue ids are not known yet. */
+    ACTIVATING(true),
+
+    /** The queue id of the item is already permitted. */
+    PERMITTED(false),
+
+    /** The item is a downstream build of a permitted build. */
+    DOWNSTREAM(false),
+
+    /** The item is a step of a pipeline. */
+    PIPELINE_STEP(false),
+
+    /** The item is not permitted. */
+    BLOCKED(true);
+
+    /** Flag indicating whether the item is blocked. */
+    private final boolean blocked;
+
+    /**
+     * Constructor.
+     * @param blocked true if the item is blocked
+     */
+    DispatchDecision(final boolean blocked) {
+        this.blocked = blocked;
+    }
+
+    /**
+     * Checks if the item is blocked.
+     * @return true if the item is prevented from running
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+}
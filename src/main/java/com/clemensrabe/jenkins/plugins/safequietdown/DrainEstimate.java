@@ -0,0 +1,126 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Projected completion of the drain, computed by the {@link DrainEstimator}.
+ * The projection assumes that enough executors are available, so the drain is
+ * finished when the longest chain of a running build or permitted queue item
+ * and its observed downstream builds is finished.
+ */
+@ExportedBean
+public final class DrainEstimate {
+
+    /** Time when the estimate was computed. */
+    private final long timestamp;
+
+    /** Estimated remaining time of the drain in milliseconds. */
+    private final long remainingMillis;
+
+    /** Number of running builds considered. */
+    private final int numberOfRunningBuilds;
+
+    /** Number of permitted queue items considered. */
+    private final int numberOfQueuedItems;
+
+    /** Number of builds and queue items without an estimated duration. */
+    private final int numberOfUnknownEstimates;
+
+    /**
+     * Constructor.
+     * @param timestamp the time when the estimate was computed
+     * @param remainingMillis the estimated remaining time of the drain in milliseconds
+     * @param numberOfRunningBuilds the number of running builds considered
+     * @param numberOfQueuedItems the number of permitted queue items considered
+     * @param numberOfUnknownEstimates the number of builds and queue items without an estimated duration
+     */
+    DrainEstimate(final long timestamp, final long remainingMillis, final int numberOfRunningBuilds,
+                  final int numberOfQueuedItems, final int numberOfUnknownEstimates) {
+        this.timestamp = timestamp;
+        this.remainingMillis = remainingMillis;
+        this.numberOfRunningBuilds = numberOfRunningBuilds;
+        this.numberOfQueuedItems = numberOfQueuedItems;
+        this.numberOfUnknownEstimates = numberOfUnknownEstimates;
+    }
+
+    /**
+     * Gets the time when the estimate was computed.
+     * @return the time in milliseconds since the epoch
+     */
+    @Exported
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the estimated remaining time of the drain at the time of the computation.
+     * @return the remaining time in milliseconds
+     */
+    @Exported
+    public long getRemainingMillis() {
+        return remainingMillis;
+    }
+
+    /**
+     * Gets the projected time when all permitted builds are finished.
+     * @return the time in milliseconds since the epoch
+     */
+    @Exported
+    public long getEstimatedCompletion() {
+        return timestamp + remainingMillis;
+    }
+
+    /**
+     * Gets the number of running builds considered.
+     * @return the number of running builds
+     */
+    @Exported
+    public int getNumberOfRunningBuilds() {
+        return numberOfRunningBuilds;
+    }
+
+    /**
+     * Gets the number of permitted queue items considered.
+     * @return the number of permitted queue items
+     */
+    @Exported
+    public int getNumberOfQueuedItems() {
+        return numberOfQueuedItems;
+    }
+
+    /**
+     * Gets the number of builds and queue items without an estimated duration,
+     * e.g., of jobs that never finished successfully. They don't contribute to
+     * the remaining time, so the estimate is too optimistic if this is not zero.
+     * @return the number of unknown estimates
+     */
+    @Exported
+    public int getNumberOfUnknownEstimates() {
+        return numberOfUnknownEstimates;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Estimates when all permitted builds are finished. The estimate combines the
+ * remaining time of the running builds, the estimated duration of the permitted
+ * queue items and the observed downstream fan-out of their jobs.
+ * The estimated durations are cached per job, as computing them loads the last
+ * builds of the job. The queue sorter only reads the cached durations, they
+ * are refreshed outside of the queue lock by the {@link PermittedQueueIdSweeper}
+ * and whenever an estimate is computed. The downstream fan-out is recorded from the upstream
+ * causes of the queue items, so it is known only for jobs that triggered
+ * other jobs since the start of Jenkins.
+ */
+@Extension
+public class DrainEstimator {
+
+    /**
+     * Time to live of the cached estimated durations in milliseconds. Can be changed by the system property
+     * <code>com.clemensrabe.jenkins.plugins.safequietdown.DrainEstimator.jobEstimateTtlMillis</code>.
+     */
+    private static final long JOB_ESTIMATE_TTL_MILLIS =
+        SystemProperties.getLong(DrainEstimator.class.getName() + ".jobEstimateTtlMillis", 300000L);
+
+    /** Maximum age of the cached estimate in milliseconds. */
+    private static final long MAX_AGE_MILLIS = 5000L;
+
+    /** Maximum depth of the followed downstream jobs to guard against long or cyclic chains. */
+    private static final int MAX_FAN_OUT_DEPTH = 16;
+
+    /** @return the singleton instance */
+    public static DrainEstimator get() {
+        return ExtensionList.lookupSingleton(DrainEstimator.class);
+    }
+
+    /** Cached estimated durations by job full name. */
+    private final ConcurrentHashMap<String, JobEstimate> jobEstimates = new ConcurrentHashMap<String, JobEstimate>();
+
+    /** Observed downstream jobs by the full name of the upstream job. */
+    private final ConcurrentHashMap<String, Set<String>> downstreamJobs =
+        new ConcurrentHashMap<String, Set<String>>();
+
+    /** The last computed estimate. */
+    private volatile DrainEstimate cachedEstimate;
+
+    /** Lock serializing the computation, so concurrent callers share one computation. */
+    private final Object computeLock = new Object();
+
+    /**
+     * Gets the estimate of the drain. The estimate is recomputed only if the
+     * cached estimate is older than the maximum age, no matter how often the
+     * queue changes, so the page header shown to every user computes it at
+     * most once per maximum age. If several callers find the cached estimate
+     * too old at the same time, only one of them computes the new estimate.
+     * @return the estimate
+     */
+    public DrainEstimate getEstimate() {
+        DrainEstimate estimate = cachedEstimate;
+        if (isUpToDate(estimate)) {
+            return estimate;
+        }
+        synchronized (computeLock) {
+            estimate = cachedEstimate;
+            if (isUpToDate(estimate)) {
+                // Computed by a concurrent caller in the meantime
+                return estimate;
+            }
+            estimate = compute();
+            cachedEstimate = estimate;
+            return estimate;
+        }
+    }
+
+    /**
+     * Checks if a cached estimate is not older than the maximum age.
+     * @param estimate the cached estimate or null
+     * @return true if the estimate can be used
+     */
+    private static boolean isUpToDate(final DrainEstimate estimate) {
+        return (estimate != null) && (System.currentTimeMillis() - estimate.getTimestamp() <= MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Computes a new estimate of the drain. The permitted queue items are
+     * considered only while the safe quietdown mode is active.
+     * @return the estimate
+     */
+    public DrainEstimate compute() {
+        final long now = System.currentTimeMillis();
+        Map<String, Long> fanOutMemo = new HashMap<String, Long>();
+        long remainingMillis = 0;
+        int unknownEstimates = 0;
+
+        try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+            List<Run<?, ?>> runs = Collections.synchronizedList(new ArrayList<Run<?, ?>>());
+            QueueUtils.forEachRunningBuild(runs::add);
+            for (Run<?, ?> run : runs) {
+                String jobName = run.getParent().getFullName();
+                long estimatedDuration = getJobEstimate(jobName);
+                long buildRemaining = 0;
+                if (estimatedDuration < 0) {
+                    ++unknownEstimates;
+                } else {
+                    buildRemaining = Math.max(0, estimatedDuration - (now - run.getStartTimeInMillis()));
+                }
+                remainingMillis = Math.max(remainingMillis, buildRemaining + getFanOutMillis(jobName, fanOutMemo));
+            }
+
+            int queuedItems = 0;
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            if (managementLink.getState() != SafeQuietdownState.INACTIVE) {
+                for (Queue.Item item : Queue.getInstance().getItems()) {
+                    // Pipeline steps are covered by the estimated duration of the running pipeline
+                    if (!(item.task instanceof Job) || !managementLink.isPermittedQueueId(item.getId())) {
+                        continue;
+                    }
+                    ++queuedItems;
+                    String jobName = ((Job<?, ?>) item.task).getFullName();
+                    long estimatedDuration = getJobEstimate(jobName);
+                    if (estimatedDuration < 0) {
+                        ++unknownEstimates;
+                        estimatedDuration = 0;
+                    }
+                    remainingMillis = Math.max(remainingMillis,
+                                               estimatedDuration + getFanOutMillis(jobName, fanOutMemo));
+                }
+            }
+            return new DrainEstimate(now, remainingMillis, runs.size(), queuedItems, unknownEstimates);
+        }
+    }
+
+    /**
+     * Gets the projected remaining duration of the chain of builds started by
+     * a queue item, i.e., the estimated duration of its job and the longest
+     * chain of observed downstream jobs. For pipeline steps only the
+     * downstream jobs of the owning pipeline are taken into account.
+     * Only the cached estimated durations are read, as this is called by the
+     * queue sorter while holding the queue lock. The cache is filled by
+     * {@link #refreshJobEstimates()}. An item whose job has no cached
+     * estimate is unknown and ranked with a duration of zero.
+     * @param item the queue item
+     * @param memo the already computed downstream durations by job full name,
+     *             shared by the items of one queue maintenance
+     * @return the duration in milliseconds
+     */
+    long getChainMillis(final Queue.Item item, final Map<String, Long> memo) {
+        if (item.task instanceof Job) {
+            String jobName = ((Job<?, ?>) item.task).getFullName();
+            if (getCachedJobEstimate(jobName) < 0) {
+                return 0;
+            }
+            return getChainMillis(jobName, this::getCachedJobEstimate, downstreamJobs::get, memo);
+        }
+        Queue.Task owner = item.task.getOwnerTask();
+        if (owner instanceof Job) {
+            return getFanOutMillis(((Job<?, ?>) owner).getFullName(), this::getCachedJobEstimate,
+                                   downstreamJobs::get, memo, 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Refreshes the cached estimated durations of the jobs of the permitted
+     * queue items, of the pipelines owning queued steps and of their observed
+     * downstream jobs, so the queue sorter finds them in the cache. Must not
+     * be called while holding the queue lock, as computing an estimated
+     * duration loads the last builds of a job.
+     */
+    void refreshJobEstimates() {
+        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+        Set<String> visited = new HashSet<String>();
+        try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+            for (Queue.Item item : Queue.getInstance().getItems()) {
+                if (item.task instanceof Job) {
+                    if (managementLink.isPermittedQueueId(item.getId())) {
+                        refreshChain(((Job<?, ?>) item.task).getFullName(), visited, 0);
+                    }
+                } else if (item.task.getOwnerTask() instanceof Job) {
+                    refreshChain(((Job<?, ?>) item.task.getOwnerTask()).getFullName(), visited, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes the cached estimated duration of a job and of its observed
+     * downstream jobs.
+     * @param jobName the full name of the job
+     * @param visited the full names of the already refreshed jobs
+     * @param depth the current depth of the chain
+     */
+    private void refreshChain(final String jobName, final Set<String> visited, final int depth) {
+        if ((depth > MAX_FAN_OUT_DEPTH) || !visited.add(jobName)) {
+            return;
+        }
+        getJobEstimate(jobName);
+        Set<String> jobs = downstreamJobs.get(jobName);
+        if (jobs != null) {
+            for (String downstreamJob : jobs) {
+                refreshChain(downstreamJob, visited, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Gets the projected duration of the chain of builds started by a job,
+     * i.e., the estimated duration of the job and the longest chain of its
+     * downstream jobs.
+     * @param jobName the full name of the job
+     * @param durations the estimated duration of a job in milliseconds or -1 if unknown
+     * @param downstream the downstream jobs of a job or null if it has none
+     * @param memo the already computed downstream durations by job full name
+     * @return the duration in milliseconds
+     */
+    static long getChainMillis(final String jobName, final ToLongFunction<String> durations,
+                               final Function<String, ? extends Collection<String>> downstream,
+                               final Map<String, Long> memo) {
+        return Math.max(0, durations.applyAsLong(jobName)) + getFanOutMillis(jobName, durations, downstream, memo, 0);
+    }
+
+    /**
+     * Records the downstream fan-out of a new queue item, i.e., the job of the
+     * item as downstream job of the jobs of its upstream causes.
+     * @param item the new queue item
+     */
+    void recordFanOut(final Queue.Item item) {
+        if (!(item.task instanceof Job)) {
+            return;
+        }
+        List<Cause> causes = item.getCauses();
+        for (int i = 0; i < causes.size(); i++) {
+            if (causes.get(i) instanceof Cause.UpstreamCause) {
+                String upstreamJob = ((Cause.UpstreamCause) causes.get(i)).getUpstreamProject();
+                downstreamJobs.computeIfAbsent(upstreamJob, name -> ConcurrentHashMap.newKeySet())
+                    .add(((Job<?, ?>) item.task).getFullName());
+            }
+        }
+    }
+
+    /**
+     * Gets the observed downstream jobs of a job.
+     * @param jobName the full name of the upstream job
+     * @return the full names of the downstream jobs
+     */
+    Set<String> getDownstreamJobs(final String jobName) {
+        Set<String> jobs = downstreamJobs.get(jobName);
+        if (jobs == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(jobs);
+    }
+
+    /**
+     * Gets the cached estimated duration of a job.
+     * @param jobName the full name of the job
+     * @return the estimated duration in milliseconds or -1 if unknown
+     */
+    long getJobEstimate(final String jobName) {
+        long now = System.currentTimeMillis();
+        JobEstimate estimate = jobEstimates.get(jobName);
+        if ((estimate == null) || (estimate.expires < now)) {
+            Job<?, ?> job = Jenkins.get().getItemByFullName(jobName, Job.class);
+            long durationMillis = -1;
+            if (job != null) {
+                durationMillis = job.getEstimatedDuration();
+            }
+            estimate = new JobEstimate(durationMillis, now + JOB_ESTIMATE_TTL_MILLIS);
+            jobEstimates.put(jobName, estimate);
+        }
+        return estimate.durationMillis;
+    }
+
+    /**
+     * Gets the cached estimated duration of a job without computing it. An
+     * expired estimate is still returned until it is refreshed.
+     * @param jobName the full name of the job
+     * @return the estimated duration in milliseconds or -1 if unknown or not cached
+     */
+    long getCachedJobEstimate(final String jobName) {
+        JobEstimate estimate = jobEstimates.get(jobName);
+        if (estimate == null) {
+            return -1;
+        }
+        return estimate.durationMillis;
+    }
+
+    /**
+     * Gets the estimated duration of the longest chain of observed downstream
+     * jobs of a job.
+     * @param jobName the full name of the upstream job
+     * @param memo the already computed durations by job full name
+     * @return the duration in milliseconds
+     */
+    private long getFanOutMillis(final String jobName, final Map<String, Long> memo) {
+        return getFanOutMillis(jobName, this::getJobEstimate, downstreamJobs::get, memo, 0);
+    }
+
+    /**
+     * Gets the estimated duration of the longest chain of downstream jobs of a job.
+     * @param jobName the full name of the upstream job
+     * @param durations the estimated duration of a job in milliseconds or -1 if unknown
+     * @param downstream the downstream jobs of a job or null if it has none
+     * @param memo the already computed durations by job full name
+     * @param depth the current depth of the chain
+     * @return the duration in milliseconds
+     */
+    private static long getFanOutMillis(final String jobName, final ToLongFunction<String> durations,
+                                        final Function<String, ? extends Collection<String>> downstream,
+                                        final Map<String, Long> memo, final int depth) {
+        Long known = memo.get(jobName);
+        if (known != null) {
+            return known;
+        }
+        Collection<String> jobs = downstream.apply(jobName);
+        if ((jobs == null) || (depth >= MAX_FAN_OUT_DEPTH)) {
+            return 0;
+        }
+
+        // Guard against cycles
+        memo.put(jobName, 0L);
+        long fanOutMillis = 0;
+        for (String downstreamJob : jobs) {
+            long estimatedDuration = Math.max(0, durations.applyAsLong(downstreamJob));
+            fanOutMillis = Math.max(fanOutMillis, estimatedDuration
+                                    + getFanOutMillis(downstreamJob, durations, downstream, memo, depth + 1));
+        }
+        memo.put(jobName, fanOutMillis);
+        return fanOutMillis;
+    }
+
+    /**
+     * Cached estimated duration of a job.
+     */
+    private static final class JobEstimate {
+
+        /** Estimated duration in milliseconds or -1 if unknown. */
+        private final long durationMillis;
+
+        /** Time when the cached estimate expires. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         * @param durationMillis the estimated duration in milliseconds or -1 if unknown
+         * @param expires the time when the cached estimate expires
+         */
+        JobEstimate(final long durationMillis, final long expires) {
+            this.durationMillis = durationMillis;
+            this.expires = expires;
+        }
+    }
+}
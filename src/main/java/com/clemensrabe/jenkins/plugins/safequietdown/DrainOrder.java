@@ -0,0 +1,112 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * The order in which the permitted queue items are dispatched while the safe
+ * quietdown mode is active.
+ */
+public enum DrainOrder {
+
+    /** The permitted items keep the order of the queue. */
+    PERMITTED_FIRST {
+        @Override
+        public String getDisplayName() {
+            return Messages.DrainOrder_PermittedFirst();
+        }
+    },
+
+    /**
+     * The permitted items with the longest projected chain of downstream
+     * builds are dispatched first, so the drain finishes as early as possible.
+     */
+    LONGEST_CHAIN_FIRST {
+        @Override
+        public String getDisplayName() {
+            return Messages.DrainOrder_LongestChainFirst();
+        }
+
+        @Override
+        public <T> void sort(final List<T> items, final ToLongFunction<T> chainMillis) {
+            if (items.size() < 2) {
+                return;
+            }
+
+            // Compute every chain only once, the sort is stable for equal chains
+            List<Ranked<T>> ranked = new ArrayList<Ranked<T>>(items.size());
+            for (T item : items) {
+                ranked.add(new Ranked<T>(item, chainMillis.applyAsLong(item)));
+            }
+            ranked.sort(Comparator.comparingLong((Ranked<T> rankedItem) -> rankedItem.chainMillis).reversed());
+            for (int i = 0; i < ranked.size(); i++) {
+                items.set(i, ranked.get(i).item);
+            }
+        }
+    };
+
+    /**
+     * Gets the name shown in the configuration.
+     * @return the display name
+     */
+    public abstract String getDisplayName();
+
+    /**
+     * Sorts the permitted items in place.
+     * @param items the permitted items in queue order
+     * @param chainMillis the projected remaining duration of the chain started by an item
+     * @param <T> the type of the items
+     */
+    public <T> void sort(final List<T> items, final ToLongFunction<T> chainMillis) {
+        // Keep the queue order
+    }
+
+    /**
+     * An item with its projected chain duration.
+     * @param <T> the type of the item
+     */
+    private static final class Ranked<T> {
+
+        /** The item. */
+        private final T item;
+
+        /** The projected remaining duration of the chain in milliseconds. */
+        private final long chainMillis;
+
+        /**
+         * Constructor.
+         * @param item the item
+         * @param chainMillis the projected remaining duration of the chain in milliseconds
+         */
+        Ranked(final T item, final long chainMillis) {
+            this.item = item;
+            this.chainMillis = chainMillis;
+        }
+    }
+}
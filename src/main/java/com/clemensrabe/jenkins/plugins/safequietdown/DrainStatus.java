@@ -0,0 +1,294 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.model.Label;
+import jenkins.util.SystemProperties;
+
+/**
+ * Snapshot of the progress of the drain, i.e., the number of active builds
+ * and buildable queue items. Computing the status never triggers a queue
+ * maintenance. Callers that poll the status, e.g., the metrics, get a cached
+ * snapshot as long as it is not older than the configured maximum age, so
+ * the queue and the executors are scanned at most once per maximum age, no
+ * matter how many pollers there are and how busy the queue is. Callers waiting
+ * for a change are woken up by {@link #invalidate()} and get a fresh status
+ * at the latest when the cached status expires. Explicit queries whose answer
+ * must reflect the latest changes, e.g., whether the drain is finished, use
+ * {@link #compute()} instead.
+ */
+@ExportedBean
+public final class DrainStatus {
+
+    /**
+     * Maximum age of the cached status in milliseconds. Can be changed by the system property
+     * <code>com.clemensrabe.jenkins.plugins.safequietdown.DrainStatus.maxAgeMillis</code>.
+     */
+    private static final long MAX_AGE_MILLIS =
+        SystemProperties.getLong(DrainStatus.class.getName() + ".maxAgeMillis", 1000L);
+
+    /** The last computed status. */
+    private static volatile DrainStatus cachedStatus;
+
+    /** Lock serializing the computation, so concurrent pollers share one computation. */
+    private static final Object COMPUTE_LOCK = new Object();
+
+    /** Lock used to signal changes of the queue and the running builds to waiting callers. */
+    private static final Object CHANGE_LOCK = new Object();
+
+    /** Counter of changes of the queue and the running builds while the quietdown is not inactive. */
+    private static final AtomicLong CHANGE_COUNTER = new AtomicLong();
+
+    /** Number of callers waiting for a change, only they need to be signalled. */
+    private static final AtomicInteger WAITERS = new AtomicInteger();
+
+    /**
+     * Flag indicating whether the quietdown is not inactive, published by the
+     * management link, so the queue events don't look up the link.
+     */
+    private static volatile boolean quietdownActive;
+
+    /** Value of the change counter when the status was computed. */
+    private final long changeCounter;
+
+    /** Number of active builds. */
+    private final int numberOfActiveBuilds;
+
+    /** Number of buildable queue items. */
+    private final int numberOfBuildableItems;
+
+    /** Number of blocked queue items. */
+    private final int numberOfBlockedItems;
+
+    /** Time when the status was computed. */
+    private final long timestamp;
+
+    /**
+     * Constructor.
+     * @param numberOfActiveBuilds the number of active builds
+     * @param numberOfBuildableItems the number of buildable queue items
+     * @param numberOfBlockedItems the number of blocked queue items
+     * @param timestamp the time when the status was computed
+     * @param changeCounter the value of the change counter when the status was computed
+     */
+    private DrainStatus(final int numberOfActiveBuilds, final int numberOfBuildableItems,
+                        final int numberOfBlockedItems, final long timestamp, final long changeCounter) {
+        this.numberOfActiveBuilds = numberOfActiveBuilds;
+        this.numberOfBuildableItems = numberOfBuildableItems;
+        this.numberOfBlockedItems = numberOfBlockedItems;
+        this.timestamp = timestamp;
+        this.changeCounter = changeCounter;
+    }
+
+    /**
+     * Gets the current status, either from the cache or freshly computed if
+     * the cached status is too old. If several callers find the cached status
+     * too old at the same time, only one of them computes the new status.
+     * @return the status
+     */
+    public static DrainStatus get() {
+        DrainStatus status = cachedStatus;
+        if (isUpToDate(status)) {
+            return status;
+        }
+        synchronized (COMPUTE_LOCK) {
+            status = cachedStatus;
+            if (isUpToDate(status)) {
+                // Computed by a concurrent caller in the meantime
+                return status;
+            }
+            return compute();
+        }
+    }
+
+    /**
+     * Checks if a cached status is not older than the maximum age.
+     * @param status the cached status or null
+     * @return true if the status can be used
+     */
+    private static boolean isUpToDate(final DrainStatus status) {
+        return (status != null) && (System.currentTimeMillis() - status.timestamp <= MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Computes the current status and updates the cache. If the quietdown is
+     * restricted to some nodes, only the builds on these nodes and the
+     * permitted buildable items are counted.
+     * @return the status
+     */
+    public static DrainStatus compute() {
+        DrainStatus status;
+        // Read before the scan, so a change during the scan marks the status as outdated
+        long currentChangeCounter = CHANGE_COUNTER.get();
+        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+        Label scope = managementLink.getScope();
+        if (scope == null) {
+            status = new DrainStatus(QueueUtils.getNumberOfActiveBuilds(),
+                                     QueueUtils.getNumberOfBuildableQueueItems(),
+                                     QueueUtils.getNumberOfBlockedQueueItems(),
+                                     System.currentTimeMillis(), currentChangeCounter);
+        } else {
+            // Items that are not permitted stay buildable for the nodes outside of the scope
+            status = new DrainStatus(QueueUtils.getNumberOfActiveBuilds(scope),
+                                     QueueUtils.getNumberOfPermittedBuildableQueueItems(managementLink),
+                                     QueueUtils.getNumberOfBlockedQueueItems(),
+                                     System.currentTimeMillis(), currentChangeCounter);
+        }
+        cachedStatus = status;
+        return status;
+    }
+
+    /**
+     * Marks the cached status as outdated. Called whenever the queue or the
+     * running builds change. Nothing is done while the quietdown is inactive,
+     * as nobody waits for the drain then, and waiting callers are only
+     * signalled if there are any, so the queue thread does not take a lock
+     * for every event.
+     */
+    public static void invalidate() {
+        if (!quietdownActive) {
+            return;
+        }
+        CHANGE_COUNTER.incrementAndGet();
+
+        // A caller starting to wait after this check sees the new counter, so it does not miss the change
+        if (WAITERS.get() > 0) {
+            synchronized (CHANGE_LOCK) {
+                CHANGE_LOCK.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Publishes whether the quietdown is active. Called by the management
+     * link whenever the quietdown is activated, deactivated or restored.
+     * @param active true if the quietdown is not inactive
+     */
+    static void setQuietdownActive(final boolean active) {
+        quietdownActive = active;
+    }
+
+    /**
+     * Gets the current value of the change counter.
+     * @return the change counter
+     */
+    public static long getChangeCounter() {
+        return CHANGE_COUNTER.get();
+    }
+
+    /**
+     * Waits until the queue or the running builds change or the timeout
+     * expires. If the cached status is outdated by a change the caller
+     * already knows about, the wait ends when the cached status expires at
+     * the latest, so the caller gets the status of the last change even if
+     * no further change follows.
+     * @param lastChangeCounter the change counter the caller knows about
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return the current change counter
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static long awaitChange(final long lastChangeCounter, final long timeoutMillis)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        DrainStatus status = cachedStatus;
+        if ((status != null) && (status.changeCounter != lastChangeCounter)) {
+            deadline = Math.min(deadline, status.timestamp + MAX_AGE_MILLIS + 1);
+        }
+        WAITERS.incrementAndGet();
+        try {
+            synchronized (CHANGE_LOCK) {
+                while (CHANGE_COUNTER.get() == lastChangeCounter) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    CHANGE_LOCK.wait(remaining);
+                }
+            }
+        } finally {
+            WAITERS.decrementAndGet();
+        }
+        return CHANGE_COUNTER.get();
+    }
+
+    /**
+     * Gets the number of active builds.
+     * @return the number of active builds
+     */
+    @Exported
+    public int getNumberOfActiveBuilds() {
+        return numberOfActiveBuilds;
+    }
+
+    /**
+     * Gets the number of buildable queue items.
+     * @return the number of buildable queue items
+     */
+    @Exported
+    public int getNumberOfBuildableItems() {
+        return numberOfBuildableItems;
+    }
+
+    /**
+     * Gets the number of blocked queue items.
+     * @return the number of blocked queue items
+     */
+    @Exported
+    public int getNumberOfBlockedItems() {
+        return numberOfBlockedItems;
+    }
+
+    /**
+     * Gets the time when the status was computed.
+     * @return the time in milliseconds since the epoch
+     */
+    @Exported
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Checks if the queue or the running builds changed since the status was computed.
+     * @return true if the status misses a change
+     */
+    public boolean isOutdated() {
+        return changeCounter != CHANGE_COUNTER.get();
+    }
+
+    /**
+     * Checks if there are neither active builds nor buildable queue items.
+     * @return true if everything is finished
+     */
+    @Exported
+    public boolean isFinished() {
+        return (numberOfActiveBuilds + numberOfBuildableItems) == 0;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.model.Queue;
+
+/**
+ * Resolves the queue items of the owner tasks of a queue item, e.g., of the
+ * pipeline owning a pipeline step. The queue items are indexed by their task
+ * once, and the owner chain of every task is memoized and shared by all items,
+ * so a lookup costs O(depth) instead of a scan of the queue per owner level.
+ * A resolver is a snapshot of the queue, so callers resolving several items
+ * should share one resolver. The {@link QueueIndex} holds the resolver of the
+ * current queue, which is rebuilt only after the queue changed. The lookups
+ * are thread-safe.
+ */
+final class OwnerChainResolver {
+
+    /** Queue ids of the items by their task. */
+    private final Map<Queue.Task, List<Long>> queueIdsByTask = new HashMap<Queue.Task, List<Long>>();
+
+    /** Memoized owner chains by task, without the task itself. */
+    private final Map<Queue.Task, List<Queue.Task>> ownerChains =
+        new ConcurrentHashMap<Queue.Task, List<Queue.Task>>();
+
+    /**
+     * Constructor. Indexes the queue items by their task.
+     * @param items the queue items
+     */
+    OwnerChainResolver(final Collection<? extends Queue.Item> items) {
+        for (Queue.Item item : items) {
+            List<Long> ids = queueIdsByTask.get(item.task);
+            if (ids == null) {
+                ids = new ArrayList<Long>(1);
+                queueIdsByTask.put(item.task, ids);
+            }
+            ids.add(item.getId());
+        }
+    }
+
+    /**
+     * Gets the queue ids of all owner tasks of the item that are found in the queue.
+     * @param item the queue item to find owner queue ids for
+     * @return set of owner queue ids
+     */
+    Set<Long> getOwnerQueueIds(final Queue.Item item) {
+        Set<Long> ownerQueueIds = new HashSet<Long>();
+        for (Queue.Task owner : getOwnerChain(item.task)) {
+            List<Long> ids = queueIdsByTask.get(owner);
+            if (ids != null) {
+                ownerQueueIds.addAll(ids);
+            }
+        }
+        return ownerQueueIds;
+    }
+
+    /**
+     * Gets the memoized owner chain of a task. The chain of a task is its
+     * owner followed by the chain of the owner.
+     * @param task the task
+     * @return the owner tasks, starting with the direct owner
+     */
+    List<Queue.Task> getOwnerChain(final Queue.Task task) {
+        List<Queue.Task> chain = ownerChains.get(task);
+        if (chain != null) {
+            return chain;
+        }
+
+        // Walk up until the root or a task with a memoized chain is reached
+        List<Queue.Task> owners = new ArrayList<Queue.Task>();
+        List<Queue.Task> tail = Collections.emptyList();
+        Queue.Task childTask = task;
+        while (true) {
+            Queue.Task ownerTask = childTask.getOwnerTask();
+            if ((ownerTask == null) || ownerTask.equals(childTask) || ownerTask.equals(task)
+                    || owners.contains(ownerTask)) {
+                break;
+            }
+            owners.add(ownerTask);
+            List<Queue.Task> ownerChain = ownerChains.get(ownerTask);
+            if (ownerChain != null) {
+                tail = ownerChain;
+                break;
+            }
+            childTask = ownerTask;
+        }
+        if (owners.isEmpty()) {
+            ownerChains.putIfAbsent(task, tail);
+            return tail;
+        }
+
+        // Memoize the chains of all visited owners, starting at the top
+        ownerChains.putIfAbsent(owners.get(owners.size() - 1), tail);
+        for (int i = owners.size() - 2; i >= -1; i--) {
+            List<Queue.Task> ownerChain = new ArrayList<Queue.Task>(tail.size() + 1);
+            ownerChain.add(owners.get(i + 1));
+            ownerChain.addAll(tail);
+            tail = Collections.unmodifiableList(ownerChain);
+            ownerChains.putIfAbsent((i >= 0) ? owners.get(i) : task, tail);
+        }
+        chain = tail;
+        return chain;
+    }
+}
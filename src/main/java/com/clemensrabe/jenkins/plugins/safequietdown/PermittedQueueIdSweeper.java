@@ -0,0 +1,75 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Periodically removes the queue ids of finished builds from the permitted
+ * queue ids and the queue index, so that they do not grow during a long
+ * safe quietdown. It also marks the quietdown as drained once all permitted
+ * builds are finished, e.g., if no build was running on activation, and
+ * refreshes the estimated durations the queue sorter ranks the permitted
+ * items by, outside of the queue lock.
+ */
+@Extension
+public class PermittedQueueIdSweeper extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(PermittedQueueIdSweeper.class.getName());
+
+    /**
+     * Gets the period between two sweeps.
+     * @return the recurrence period in milliseconds
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    /**
+     * Removes the finished queue ids, checks if the drain is finished and
+     * refreshes the estimated durations if the safe quietdown mode is active,
+     * and removes the builds that are no longer needed from the queue index.
+     */
+    @Override
+    protected void doRun() {
+        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+        if (managementLink.isQuietdownActive()) {
+            int numberOfRemovedIds = managementLink.prunePermittedQueueIds();
+            LOGGER.log(Level.FINE, "Removed {0} finished queue ids, {1} queue ids are still permitted.",
+                       new Object[] {numberOfRemovedIds, managementLink.getNumberOfPermittedQueueIds()});
+            managementLink.updateDrained();
+            if (SafeQuietdownConfiguration.get().getDrainOrder() != DrainOrder.PERMITTED_FIRST) {
+                DrainEstimator.get().refreshJobEstimates();
+            }
+        }
+        QueueIndex.get().removeFinishedRuns(managementLink);
+    }
+}
@@ -0,0 +1,858 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import jenkins.util.Timer;
+
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+/**
+ * Live index of the queue items and running builds, maintained by queue and
+ * run events. It allows to take the snapshot of permitted queue ids on
+ * activation without scanning the queue and all executors.
+ * The index is primed by a single scan on first use, as items restored from
+ * disk and builds resumed after a restart don't send any events.
+ * <p>
+ * While the safe quietdown mode is active, the upstream builds of a queued
+ * item are resolved from the index once when it enters the queue, and an
+ * item triggered by a permitted build is permitted right away. As the queued
+ * downstream items are permitted on activation, the permitted queue ids
+ * always contain the transitive downstream closure of the builds that were
+ * running at activation. As every hop is resolved when its item enters the
+ * queue, the closure does not depend on the depth of the cause chain, which Jenkins
+ * truncates for deeply nested upstream causes.
+ * <p>
+ * The dispatcher never loads a build from disk. If the upstream build of a
+ * queued job is unknown to the index, e.g., a permitted build that finished
+ * before a restart, the build is loaded asynchronously on the Jenkins timer
+ * and the job is permitted afterwards if the loaded build is permitted. The
+ * number of jobs waiting for such a load is bounded.
+ */
+@Extension
+public class QueueIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(QueueIndex.class.getName());
+
+    /** Empty array of queue ids. */
+    private static final long[] NO_QUEUE_IDS = new long[0];
+
+    /** Maximum number of queued jobs whose upstream builds wait to be loaded. */
+    private static final int MAX_PENDING_LOADS = 1024;
+
+    /** Time after which a job that left the queue but did not start a build is forgotten. */
+    private static final long STARTING_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** @return the singleton instance */
+    public static QueueIndex get() {
+        return ExtensionList.lookupSingleton(QueueIndex.class);
+    }
+
+    /** Queue ids of all running builds. */
+    private final ConcurrentLongHashSet runningQueueIds = new ConcurrentLongHashSet();
+
+    /**
+     * Queue ids of jobs that left the queue to be built, but whose build did
+     * not start yet, with the time they left the queue in milliseconds.
+     */
+    private final ConcurrentHashMap<Long, Long> startingQueueIds = new ConcurrentHashMap<Long, Long>();
+
+    /** Queue ids of all queued jobs. */
+    private final ConcurrentLongHashSet queuedIds = new ConcurrentLongHashSet();
+
+    /** Queue ids of queued jobs that are triggered by an upstream build or that are pipeline steps. */
+    private final ConcurrentLongHashSet downstreamQueuedIds = new ConcurrentLongHashSet();
+
+    /**
+     * Queue ids of running and permitted builds by job full name and build number.
+     * Used to resolve the upstream build of a cause without loading it from disk.
+     */
+    private final ConcurrentHashMap<String, ConcurrentLongHashMap<Long>> runQueueIds =
+        new ConcurrentHashMap<String, ConcurrentLongHashMap<Long>>();
+
+    /**
+     * Resolved upstream queue ids of the queued jobs by their queue id. Jobs
+     * without an upstream build are stored with an empty array, so the
+     * dispatcher never has to look at the causes of a resolved job again.
+     */
+    private final ConcurrentLongHashMap<long[]> upstreamQueueIds = new ConcurrentLongHashMap<long[]>();
+
+    /** Queue ids of the queued jobs with an upstream build unknown to the index that waits to be loaded. */
+    private final ConcurrentLongHashSet pendingLoads = new ConcurrentLongHashSet();
+
+    /** Flag indicating whether loading the pending upstream builds is scheduled. */
+    private final AtomicBoolean loadScheduled = new AtomicBoolean();
+
+    /** Resolver of the owner tasks of the current queue, null if the queue changed since it was built. */
+    private volatile OwnerChainResolver ownerChainResolver;
+
+    /** Flag indicating whether the index was primed by a full scan. */
+    private volatile boolean primed;
+
+    /**
+     * Adds the ids of the queue items that are permitted to continue when the
+     * safe quietdown mode is activated, i.e., all running builds including
+     * those that left the queue but did not start yet, and depending
+     * on the configuration either all queued jobs or only those with an
+     * upstream build.
+     * @param permittedQueueIds the set to add the permitted ids to
+     */
+    public void collectPermittedQueueIds(final ConcurrentLongHashSet permittedQueueIds) {
+        prime();
+        resolveQueuedUpstreamQueueIds();
+        if (SafeQuietdownConfiguration.get().isAllowAllQueuedItems()) {
+            permittedQueueIds.addAll(queuedIds);
+        } else {
+            permittedQueueIds.addAll(downstreamQueuedIds);
+        }
+        permittedQueueIds.addAll(runningQueueIds);
+        for (Long queueId : startingQueueIds.keySet()) {
+            permittedQueueIds.add(queueId);
+        }
+    }
+
+    /**
+     * Adds the ids of the queue items that are permitted to continue when the
+     * safe quietdown mode restricted to some nodes is activated, i.e., the
+     * builds running or starting on these nodes and the queued items that can
+     * only run on these nodes and are either downstream of such a build or,
+     * depending on the configuration, any queued job. Builds on other nodes
+     * are not permitted, so they can't land on the drained nodes. Downstream
+     * items of the permitted builds that enter the queue later are permitted
+     * by the dispatcher.
+     * @param permittedQueueIds the set to add the permitted ids to
+     * @param scope the label expression of the drained nodes or null to drain the whole controller
+     */
+    public void collectPermittedQueueIds(final ConcurrentLongHashSet permittedQueueIds, final Label scope) {
+        if (scope == null) {
+            collectPermittedQueueIds(permittedQueueIds);
+            return;
+        }
+        prime();
+        resolveQueuedUpstreamQueueIds();
+        ConcurrentLongHashSet buildIds = new ConcurrentLongHashSet();
+        QueueUtils.forEachQueueIdOnNodes(scope, buildIds::add);
+        boolean allowAllQueuedItems = SafeQuietdownConfiguration.get().isAllowAllQueuedItems();
+        for (Queue.Item item : Queue.getInstance().getItems()) {
+            if (QueueUtils.isBoundToNodes(item, scope)
+                && ((allowAllQueuedItems && (item.task instanceof Job)) || isDownstreamOf(item, buildIds))) {
+                permittedQueueIds.add(item.getId());
+            }
+        }
+        permittedQueueIds.addAll(buildIds);
+    }
+
+    /**
+     * Checks if a queued item is triggered by one of the given builds or is a
+     * step of one of them.
+     * @param item the queued item
+     * @param buildIds the queue ids of the builds
+     * @return true if the item is downstream of one of the builds
+     */
+    private boolean isDownstreamOf(final Queue.Item item, final ConcurrentLongHashSet buildIds) {
+        Queue.Executable owner = item.task.getOwnerExecutable();
+        if (owner instanceof Run) {
+            return buildIds.contains(((Run<?, ?>) owner).getQueueId());
+        }
+        long[] upstreamIds = upstreamQueueIds.get(item.getId());
+        if (upstreamIds != null) {
+            for (int i = 0; i < upstreamIds.length; i++) {
+                if (buildIds.contains(upstreamIds[i])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a queue item is in the downstream closure of the permitted
+     * builds, i.e., if one of its upstream builds is permitted. The upstream
+     * builds of queued jobs are resolved only once and kept until the job
+     * leaves the queue, so a repeated check neither allocates nor looks at
+     * the causes again. Upstream builds unknown to the index are loaded
+     * asynchronously, see {@link #loadPendingUpstreamBuilds()}. Other items, e.g., pipeline steps, are checked by
+     * walking their causes until the first permitted build is found.
+     * @param item the queue item
+     * @param managementLink the management link holding the permitted queue ids
+     * @return true if an upstream build of the item is permitted
+     */
+    public boolean isInDownstreamClosure(final Queue.Item item, final SafeQuietdownManagementLink managementLink) {
+        final long id = item.getId();
+        long[] upstreamIds = upstreamQueueIds.get(id);
+        if ((upstreamIds == null) && queuedIds.contains(id)) {
+            upstreamIds = memoizeUpstreamQueueIds(id, resolveUpstreamQueueIds(item));
+            scheduleLoadIfUnindexed(id, item.getCauses(), managementLink);
+        }
+        if (upstreamIds == null) {
+            return hasPermittedUpstreamQueueId(item.getCauses(), managementLink);
+        }
+        for (int i = 0; i < upstreamIds.length; i++) {
+            if (managementLink.isPermittedQueueId(upstreamIds[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the queue ids of the upstream builds of a queue item. The ids of
+     * jobs that entered the queue while the safe quietdown mode was active
+     * or that were queued on its activation are resolved only once.
+     * @param item the queue item
+     * @return the upstream queue ids
+     */
+    public long[] getUpstreamQueueIds(final Queue.Item item) {
+        long[] upstreamIds = upstreamQueueIds.get(item.getId());
+        if (upstreamIds == null) {
+            upstreamIds = resolveUpstreamQueueIds(item);
+        }
+        return upstreamIds;
+    }
+
+    /**
+     * Checks if the upstream queue ids of a queued item were resolved when it
+     * entered the queue or when the safe quietdown mode was activated.
+     * @param queueId the queue id of the item
+     * @return true if the upstream queue ids are known
+     */
+    boolean hasUpstreamQueueIds(final long queueId) {
+        return upstreamQueueIds.containsKey(queueId);
+    }
+
+    /**
+     * Resolves the queue ids of the upstream builds of a queue item from the
+     * index. Builds are never loaded from disk. If the direct upstream build
+     * of a cause is unknown to the index, e.g., because it finished before the
+     * activation or was deleted, the nearest known build of its nested
+     * upstream causes is used. The permitted builds are kept in the index,
+     * only after a restart a permitted build may be unknown to it, which is
+     * then loaded by {@link #loadPendingUpstreamBuilds()}.
+     * @param item the queue item
+     * @return the upstream queue ids
+     */
+    long[] resolveUpstreamQueueIds(final Queue.Item item) {
+        return collectUpstreamQueueIds(item.getCauses(), NO_QUEUE_IDS);
+    }
+
+    /**
+     * Adds the queue ids of the upstream builds of the causes known to the
+     * index to the given ids. Only the returned array is allocated, and only
+     * if an upstream build is found.
+     * @param causes the causes to resolve
+     * @param upstreamIds the upstream queue ids resolved so far
+     * @return the upstream queue ids including those of the causes
+     */
+    private long[] collectUpstreamQueueIds(final List<Cause> causes, final long[] upstreamIds) {
+        long[] ids = upstreamIds;
+        for (int i = 0; i < causes.size(); i++) {
+            Cause cause = causes.get(i);
+            if (cause instanceof Cause.UpstreamCause) {
+                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
+                long upstreamId = getIndexedUpstreamQueueId(upstreamCause);
+                if (upstreamId == Run.QUEUE_ID_UNKNOWN) {
+                    // Truncated chains end in a DeeplyNestedUpstreamCause, which is skipped here
+                    ids = collectUpstreamQueueIds(upstreamCause.getUpstreamCauses(), ids);
+                } else if (!contains(ids, upstreamId)) {
+                    ids = Arrays.copyOf(ids, ids.length + 1);
+                    ids[ids.length - 1] = upstreamId;
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Checks if the upstream build of one of the causes is permitted, resolving
+     * the builds from the index like {@link #collectUpstreamQueueIds(List, long[])}
+     * but without allocating and stopping at the first permitted build.
+     * @param causes the causes to check
+     * @param managementLink the management link holding the permitted queue ids
+     * @return true if an upstream build is permitted
+     */
+    private boolean hasPermittedUpstreamQueueId(final List<Cause> causes,
+                                                final SafeQuietdownManagementLink managementLink) {
+        for (int i = 0; i < causes.size(); i++) {
+            Cause cause = causes.get(i);
+            if (cause instanceof Cause.UpstreamCause) {
+                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
+                long upstreamId = getIndexedUpstreamQueueId(upstreamCause);
+                if (upstreamId == Run.QUEUE_ID_UNKNOWN) {
+                    if (hasPermittedUpstreamQueueId(upstreamCause.getUpstreamCauses(), managementLink)) {
+                        return true;
+                    }
+                } else if (managementLink.isPermittedQueueId(upstreamId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the upstream queue ids of all queued jobs that are not resolved
+     * yet. Called on activation off the queue thread, so the dispatcher finds
+     * the ids of the jobs queued before the activation in the index. As this
+     * does not run on the queue thread, upstream builds unknown to the index
+     * are loaded right away.
+     */
+    void resolveQueuedUpstreamQueueIds() {
+        for (Queue.Item item : Queue.getInstance().getItems()) {
+            if ((item.task instanceof Job) && !upstreamQueueIds.containsKey(item.getId())) {
+                memoizeUpstreamQueueIds(item.getId(), loadUpstreamQueueIds(item));
+            }
+        }
+    }
+
+    /**
+     * Resolves the queue ids of the upstream builds of a queue item like
+     * {@link #resolveUpstreamQueueIds(Queue.Item)}, but additionally loads
+     * the direct upstream builds unknown to the index. The loaded builds are
+     * added to the index, so other items triggered by them are resolved
+     * without loading them again. As loading a build may read it from disk,
+     * this must not be called by the dispatcher.
+     * @param item the queue item
+     * @return the upstream queue ids
+     */
+    long[] loadUpstreamQueueIds(final Queue.Item item) {
+        long[] ids = resolveUpstreamQueueIds(item);
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
+                if (getIndexedUpstreamQueueId(upstreamCause) == Run.QUEUE_ID_UNKNOWN) {
+                    Run<?, ?> run = upstreamCause.getUpstreamRun();
+                    if ((run != null) && !contains(ids, run.getQueueId())) {
+                        indexRun(run);
+                        ids = Arrays.copyOf(ids, ids.length + 1);
+                        ids[ids.length - 1] = run.getQueueId();
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Schedules loading the upstream builds of a queued job if one of its
+     * direct upstream builds is unknown to the index. Nothing is scheduled
+     * while the safe quietdown mode is inactive, as nothing is blocked then,
+     * or if too many jobs are waiting already. Called on the queue thread.
+     * @param queueId the queue id of the job
+     * @param causes the causes of the job
+     * @param managementLink the management link holding the permitted queue ids
+     */
+    private void scheduleLoadIfUnindexed(final long queueId, final List<Cause> causes,
+                                         final SafeQuietdownManagementLink managementLink) {
+        if (!managementLink.isQuietdownActive() || !hasUnindexedUpstreamCause(causes)) {
+            return;
+        }
+        if (pendingLoads.size() >= MAX_PENDING_LOADS) {
+            LOGGER.log(Level.FINE, "Too many pending upstream loads, not loading the upstream builds of {0}.",
+                       queueId);
+            return;
+        }
+        pendingLoads.add(queueId);
+        if (loadScheduled.compareAndSet(false, true)) {
+            Timer.get().submit(this::loadPendingUpstreamBuilds);
+        }
+    }
+
+    /**
+     * Loads the upstream builds of the queued jobs that were unknown to the
+     * index when they were resolved. A job that is triggered by a permitted
+     * build is permitted, which invalidates the remembered blocked decisions,
+     * and a queue maintenance is scheduled, so the job is dispatched again.
+     */
+    void loadPendingUpstreamBuilds() {
+        // Reset before taking the ids, so ids added later schedule another run
+        loadScheduled.set(false);
+        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+        boolean permitted = false;
+        for (long queueId : pendingLoads.toArray()) {
+            pendingLoads.remove(queueId);
+            Queue.Item item = Queue.getInstance().getItem(queueId);
+            if ((item == null) || !queuedIds.contains(queueId) || !managementLink.isQuietdownActive()) {
+                continue;
+            }
+            long[] upstreamIds = loadUpstreamQueueIds(item);
+            upstreamQueueIds.put(queueId, upstreamIds);
+            if (!queuedIds.contains(queueId)) {
+                // Left the queue while loading, see memoizeUpstreamQueueIds
+                upstreamQueueIds.remove(queueId);
+                continue;
+            }
+            for (long upstreamId : upstreamIds) {
+                if (managementLink.isPermittedQueueId(upstreamId)) {
+                    managementLink.addPermittedQueueId(queueId);
+                    permitted = true;
+                    break;
+                }
+            }
+        }
+        if (permitted) {
+            Queue.getInstance().scheduleMaintenance();
+        }
+    }
+
+    /**
+     * Checks if the direct upstream build of one of the causes is unknown to the index.
+     * @param causes the causes of a queue item
+     * @return true if an upstream build is unknown to the index
+     */
+    private boolean hasUnindexedUpstreamCause(final List<Cause> causes) {
+        for (int i = 0; i < causes.size(); i++) {
+            Cause cause = causes.get(i);
+            if ((cause instanceof Cause.UpstreamCause)
+                && (getIndexedUpstreamQueueId((Cause.UpstreamCause) cause) == Run.QUEUE_ID_UNKNOWN)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores the resolved upstream queue ids of a queued job. If the job left
+     * the queue in the meantime, the ids are dropped again, as
+     * {@link #itemLeft(Queue.Item)} might have run before they were stored.
+     * @param queueId the queue id of the job
+     * @param upstreamIds the resolved upstream queue ids
+     * @return the stored upstream queue ids
+     */
+    private long[] memoizeUpstreamQueueIds(final long queueId, final long[] upstreamIds) {
+        long[] current = upstreamQueueIds.putIfAbsent(queueId, upstreamIds);
+        if (current != null) {
+            return current;
+        }
+        if (!queuedIds.contains(queueId)) {
+            upstreamQueueIds.remove(queueId);
+        }
+        return upstreamIds;
+    }
+
+    /**
+     * Gets the resolver of the owner tasks of the current queue. The resolver
+     * is shared by all lookups and rebuilt only after an item entered or left
+     * the queue, so resolving the owners of several items scans the queue at
+     * most once. It is only used outside of the dispatch path, e.g., by
+     * {@link QueueUtils#getOwnerQueueIds(Queue.Item)}, the dispatcher only
+     * checks the direct owner of a task.
+     * @return the resolver of the owner tasks
+     */
+    OwnerChainResolver getOwnerChainResolver() {
+        OwnerChainResolver resolver = ownerChainResolver;
+        if (resolver == null) {
+            resolver = new OwnerChainResolver(Arrays.asList(Queue.getInstance().getItems()));
+            ownerChainResolver = resolver;
+        }
+        return resolver;
+    }
+
+    /**
+     * Permits a new queue item if it was triggered by a permitted build.
+     * @param item the new queue item
+     * @param managementLink the management link holding the permitted queue ids
+     */
+    void permitIfDownstream(final Queue.Item item, final SafeQuietdownManagementLink managementLink) {
+        if ((managementLink.getState() == SafeQuietdownState.ACTIVE
+             || managementLink.getState() == SafeQuietdownState.DRAINED)
+            && upstreamQueueIds.containsKey(item.getId())
+            && isInDownstreamClosure(item, managementLink)) {
+            managementLink.addPermittedQueueId(item.getId());
+        }
+    }
+
+    /**
+     * Checks if a build with the given queue id is running.
+     * @param queueId the queue id of the build
+     * @return true if the build is running
+     */
+    public boolean isRunning(final long queueId) {
+        return runningQueueIds.contains(queueId);
+    }
+
+    /**
+     * Gets the number of running builds known to the index.
+     * @return the number of running builds
+     */
+    public int getNumberOfRunningBuilds() {
+        return runningQueueIds.size();
+    }
+
+    /**
+     * Gets the queue id of the upstream build of a cause. The queue id is
+     * looked up by the project name and build number of the cause, only if
+     * the build is unknown to the index it is loaded. This is the same policy
+     * as for the queued jobs, except that the build is loaded synchronously.
+     * As loading a build may read it from disk, this must not be called by
+     * the dispatcher.
+     * @param cause the upstream cause
+     * @return the queue id or {@link Run#QUEUE_ID_UNKNOWN} if the upstream build does not exist
+     */
+    public long getUpstreamQueueId(final Cause.UpstreamCause cause) {
+        long queueId = getIndexedUpstreamQueueId(cause);
+        if (queueId != Run.QUEUE_ID_UNKNOWN) {
+            return queueId;
+        }
+
+        Run<?, ?> run = cause.getUpstreamRun();
+        if (run != null) {
+            return run.getQueueId();
+        }
+        return Run.QUEUE_ID_UNKNOWN;
+    }
+
+    /**
+     * Gets the queue id of the upstream build of a cause if the build is
+     * known to the index. The build is never loaded from disk.
+     * @param cause the upstream cause
+     * @return the queue id or {@link Run#QUEUE_ID_UNKNOWN} if the upstream build is unknown to the index
+     */
+    long getIndexedUpstreamQueueId(final Cause.UpstreamCause cause) {
+        ConcurrentLongHashMap<Long> builds = runQueueIds.get(cause.getUpstreamProject());
+        if (builds != null) {
+            Long queueId = builds.get(cause.getUpstreamBuild());
+            if (queueId != null) {
+                return queueId;
+            }
+        }
+        return Run.QUEUE_ID_UNKNOWN;
+    }
+
+    /**
+     * Checks if a queue id is contained in an array of queue ids.
+     * @param queueIds the queue ids
+     * @param queueId the queue id to look for
+     * @return true if the queue id is contained
+     */
+    private static boolean contains(final long[] queueIds, final long queueId) {
+        for (int i = 0; i < queueIds.length; i++) {
+            if (queueIds[i] == queueId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all builds from the index that are neither running nor permitted
+     * and the jobs that left the queue but never started a build. Running
+     * builds that are no longer found on any executor are removed as well,
+     * e.g., a build that finished while the index was primed.
+     * @param managementLink the management link holding the permitted queue ids
+     */
+    void removeFinishedRuns(final SafeQuietdownManagementLink managementLink) {
+        long startedBefore = System.currentTimeMillis() - STARTING_TIMEOUT_MILLIS;
+        startingQueueIds.values().removeIf(leftTime -> leftTime < startedBefore);
+        removeStaleRunningQueueIds(managementLink);
+
+        for (String jobName : runQueueIds.keySet()) {
+            runQueueIds.computeIfPresent(jobName, (name, builds) -> {
+                builds.removeIf(queueId -> !runningQueueIds.contains(queueId)
+                                         && !managementLink.isPermittedQueueId(queueId));
+                if (builds.isEmpty()) {
+                    return null;
+                }
+                return builds;
+            });
+        }
+    }
+
+    /**
+     * Removes the queue ids of running builds that are not found on any
+     * executor and marks them as finished if they are permitted. Only ids
+     * recorded before the executors are scanned are removed, so a build
+     * starting during the scan is kept.
+     * @param managementLink the management link holding the permitted queue ids
+     */
+    private void removeStaleRunningQueueIds(final SafeQuietdownManagementLink managementLink) {
+        long[] recordedIds = runningQueueIds.toArray();
+        if (recordedIds.length == 0) {
+            return;
+        }
+        ConcurrentLongHashSet liveIds = new ConcurrentLongHashSet();
+        QueueUtils.forEachRunningBuild(run -> liveIds.add(run.getQueueId()));
+        int removed = 0;
+        for (long queueId : recordedIds) {
+            if (!liveIds.contains(queueId) && runningQueueIds.remove(queueId)) {
+                managementLink.markFinishedQueueId(queueId);
+                ++removed;
+            }
+        }
+        if (removed > 0) {
+            LOGGER.log(Level.FINE, "Removed {0} queue ids of builds that are no longer running.", removed);
+            DrainStatus.invalidate();
+        }
+    }
+
+    /**
+     * Checks if the index was primed by a full scan.
+     * @return true if the index was primed
+     */
+    boolean isPrimed() {
+        return primed;
+    }
+
+    /**
+     * Primes the index by scanning the queue and all executors once. The
+     * cached dispatch decisions are invalidated afterwards, as they were made
+     * without the primed builds.
+     */
+    void prime() {
+        if (primed) {
+            return;
+        }
+        synchronized (this) {
+            if (!primed) {
+                long start = System.nanoTime();
+                final boolean resolveUpstream = SafeQuietdownManagementLink.get().isQuietdownActive();
+                Queue.withLock(() -> {
+                    for (Queue.Item item : Queue.getInstance().getItems()) {
+                        itemEntered(item, resolveUpstream);
+                    }
+                });
+                QueueUtils.forEachRunningBuild(this::runStarted);
+                primed = true;
+                // Items dispatched before the index knew their upstream builds may be cached as blocked
+                SafeQuietdownManagementLink.get().invalidateDecisions();
+                LOGGER.log(Level.FINE, "Primed queue index in {0} ms.",
+                           TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+    }
+
+    /**
+     * Records a new queue item. The upstream builds are resolved from the
+     * index only, as this runs on the queue thread, the builds unknown to the
+     * index are loaded asynchronously. They are resolved only
+     * while the safe quietdown mode is active, so an inactive quietdown
+     * costs nothing per item. The items that are already queued on activation
+     * are resolved by the activation.
+     * @param item the queue item
+     * @param resolveUpstream true to resolve the upstream builds of the item
+     */
+    void itemEntered(final Queue.Item item, final boolean resolveUpstream) {
+        ownerChainResolver = null;
+        if (item.task instanceof Job) {
+            queuedIds.add(item.getId());
+            List<Cause> causes = item.getCauses();
+            boolean hasUpstreamCause = hasUpstreamCause(causes);
+            if (hasUpstreamCause || isPipelineStep(item)) {
+                downstreamQueuedIds.add(item.getId());
+            }
+            if (resolveUpstream) {
+                upstreamQueueIds.put(item.getId(),
+                                     hasUpstreamCause ? collectUpstreamQueueIds(causes, NO_QUEUE_IDS) : NO_QUEUE_IDS);
+                if (hasUpstreamCause) {
+                    scheduleLoadIfUnindexed(item.getId(), causes, SafeQuietdownManagementLink.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a queue item that left the queue.
+     * @param item the queue item
+     */
+    void itemLeft(final Queue.Item item) {
+        ownerChainResolver = null;
+        queuedIds.remove(item.getId());
+        pendingLoads.remove(item.getId());
+        downstreamQueuedIds.remove(item.getId());
+        upstreamQueueIds.remove(item.getId());
+    }
+
+    /**
+     * Records a job that left the queue to be built. Its build is treated as
+     * running until the run listener is notified of the start of the build.
+     * @param item the queue item that left the queue
+     */
+    void itemStarting(final Queue.LeftItem item) {
+        if ((item.task instanceof Job) && !item.isCancelled()) {
+            startingQueueIds.put(item.getId(), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records a started build.
+     * @param run the build
+     */
+    void runStarted(final Run<?, ?> run) {
+        final long queueId = run.getQueueId();
+        runningQueueIds.add(queueId);
+        startingQueueIds.remove(queueId);
+        indexRun(run);
+    }
+
+    /**
+     * Adds a build to the index of the builds by job full name and build number.
+     * @param run the build
+     */
+    private void indexRun(final Run<?, ?> run) {
+        final long queueId = run.getQueueId();
+        runQueueIds.compute(run.getParent().getFullName(), (name, builds) -> {
+            ConcurrentLongHashMap<Long> jobBuilds = builds;
+            if (jobBuilds == null) {
+                jobBuilds = new ConcurrentLongHashMap<Long>();
+            }
+            jobBuilds.put(run.getNumber(), queueId);
+            return jobBuilds;
+        });
+    }
+
+    /**
+     * Removes a finished build.
+     * @param run the build
+     */
+    void runFinalized(final Run<?, ?> run) {
+        runningQueueIds.remove(run.getQueueId());
+        startingQueueIds.remove(run.getQueueId());
+    }
+
+    /**
+     * Checks if one of the causes is an upstream build.
+     * @param causes the causes of a queue item
+     * @return true if an upstream cause is found
+     */
+    private static boolean hasUpstreamCause(final List<Cause> causes) {
+        for (int i = 0; i < causes.size(); i++) {
+            if (causes.get(i) instanceof Cause.UpstreamCause) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a queue item is a step of a pipeline.
+     * @param item the queue item
+     * @return true if the owner task of the item is a pipeline
+     */
+    private static boolean isPipelineStep(final Queue.Item item) {
+        return (item.task.getOwnerTask() != item.task) && (item.task.getOwnerTask() instanceof WorkflowJob);
+    }
+
+    /**
+     * Updates the index on queue events.
+     */
+    @Extension
+    public static final class QueueEvents extends QueueListener {
+
+        /**
+         * Records the new queue item and its downstream fan-out. The item is
+         * permitted right away if it was triggered by a permitted build.
+         * @param item the new queue item
+         */
+        @Override
+        public void onEnterWaiting(final Queue.WaitingItem item) {
+            QueueIndex queueIndex = QueueIndex.get();
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            queueIndex.itemEntered(item, managementLink.isQuietdownActive());
+            queueIndex.permitIfDownstream(item, managementLink);
+            DrainEstimator.get().recordFanOut(item);
+            DrainStatus.invalidate();
+        }
+
+        /**
+         * Invalidates the drain status as a blocked item is not buildable.
+         * @param item the blocked queue item
+         */
+        @Override
+        public void onEnterBlocked(final Queue.BlockedItem item) {
+            DrainStatus.invalidate();
+        }
+
+        /**
+         * Invalidates the drain status as the item might have been blocked before.
+         * @param item the buildable queue item
+         */
+        @Override
+        public void onEnterBuildable(final Queue.BuildableItem item) {
+            DrainStatus.invalidate();
+        }
+
+        /**
+         * Removes the queue item that left the queue and records its build
+         * as starting if it was not cancelled.
+         * @param item the queue item
+         */
+        @Override
+        public void onLeft(final Queue.LeftItem item) {
+            QueueIndex queueIndex = QueueIndex.get();
+            queueIndex.itemLeft(item);
+            queueIndex.itemStarting(item);
+            ExtensionList.lookupSingleton(BuildPreventer.class).forget(item.getId());
+            DrainStatus.invalidate();
+            if (item.isCancelled()) {
+                SafeQuietdownManagementLink.get().markFinishedQueueId(item.getId());
+            }
+        }
+    }
+
+    /**
+     * Updates the index on run events.
+     */
+    @Extension
+    public static final class RunEvents extends RunListener<Run<?, ?>> {
+
+        /**
+         * Records the started build.
+         * @param run the build
+         * @param listener the task listener
+         */
+        @Override
+        public void onStarted(final Run<?, ?> run, final TaskListener listener) {
+            QueueIndex.get().runStarted(run);
+            DrainStatus.invalidate();
+        }
+
+        /**
+         * Removes the finished build.
+         * @param run the build
+         */
+        @Override
+        public void onFinalized(final Run<?, ?> run) {
+            QueueIndex.get().runFinalized(run);
+            DrainStatus.invalidate();
+            SafeQuietdownManagementLink.get().markFinishedQueueId(run.getQueueId());
+        }
+    }
+}
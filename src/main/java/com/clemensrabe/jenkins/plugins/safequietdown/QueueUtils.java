@@ -27,18 +27,26 @@
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 import hudson.model.Cause;
 import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Job;
+import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Run;
+import hudson.model.queue.WorkUnit;
 import jenkins.model.Jenkins;
 
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -48,6 +56,9 @@ import org.jenkinsci.plugins.workflow.job.WorkflowJob;
  */
 public final class QueueUtils {
 
+    /** Number of computers from which on the executors are scanned in parallel. */
+    private static final int PARALLEL_SCAN_THRESHOLD = 256;
+
     /**
      * Hiding utility class constructor.
      */
@@ -63,9 +74,21 @@ public final class QueueUtils {
      * @return set of item ids
      */
     public static Set<Long> getPermittedQueueItemIds() {
+        return getPermittedQueueItemIds(Arrays.asList(Queue.getInstance().getItems()),
+                                        SafeQuietdownConfiguration.get().isAllowAllQueuedItems());
+    }
+
+    /**
+     * Returns the set of queue ids of the given items that are permitted to
+     * continue, see {@link #getPermittedQueueItemIds()}.
+     * @param items the queue items
+     * @param allowAllQueuedItems true if all queued items are allowed to finish
+     * @return set of item ids
+     */
+    static Set<Long> getPermittedQueueItemIds(final Collection<? extends Queue.Item> items,
+                                              final boolean allowAllQueuedItems) {
         Set<Long> queuedIds = new HashSet<Long>();
-        boolean allowAllQueuedItems = SafeQuietdownConfiguration.get().isAllowAllQueuedItems();
-        for (Queue.Item item : Queue.getInstance().getItems()) {
+        for (Queue.Item item : items) {
             if (item.task instanceof Job) {
                 if (allowAllQueuedItems) {
                     queuedIds.add(item.getId());
@@ -108,21 +131,104 @@ public final class QueueUtils {
         return Collections.unmodifiableSet(upstreamRuns);
     }
 
-   /**
-     * Return a set of queue ids of all currently running builds.
+    /**
+     * Calls the action for every running build. All computers are walked once,
+     * in parallel for large numbers of computers, so the action must be thread-safe.
      *
-     * @return set of running queue ids
+     * @param action the action to call for every running build
      */
-    public static Set<Long> getRunningQueueItemIds() {
-        Set<Long> runningProjects = new HashSet<Long>();
+    public static void forEachRunningBuild(final Consumer<Run<?, ?>> action) {
+        Computer[] computers = Jenkins.get().getComputers();
+        Stream<Computer> stream = Arrays.stream(computers);
+        if (computers.length >= PARALLEL_SCAN_THRESHOLD) {
+            stream = stream.parallel();
+        }
+        stream.forEach(computer -> forEachRunningBuild(computer, action));
+    }
 
-        List<Node> allNodes = new ArrayList<Node>(Jenkins.get().getNodes());
-        allNodes.add(Jenkins.get());
+    /**
+     * Calls the action for every build running on a computer.
+     *
+     * @param computer the computer
+     * @param action the action to call for every running build
+     */
+    private static void forEachRunningBuild(final Computer computer, final Consumer<Run<?, ?>> action) {
+        for (Executor executor : computer.getAllExecutors()) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable instanceof Run) {
+                action.accept((Run<?, ?>) executable);
+            }
+        }
+    }
 
-        for (Node node : allNodes) {
-            runningProjects.addAll(getRunningQueueItemIds(node.getNodeName()));
+    /**
+     * Calls the action for the queue id of every build running or starting on
+     * a node matching a label expression. For a pipeline step running on such
+     * a node, the queue id of the pipeline build owning the step is reported.
+     *
+     * @param scope the label expression of the nodes
+     * @param action the action to call for every queue id
+     */
+    static void forEachQueueIdOnNodes(final Label scope, final LongConsumer action) {
+        for (Computer computer : Jenkins.get().getComputers()) {
+            Node node = computer.getNode();
+            if ((node == null) || !scope.matches(node)) {
+                continue;
+            }
+            for (Executor executor : computer.getAllExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable == null) {
+                    // The item left the queue for this executor, but its build did not start yet
+                    WorkUnit workUnit = executor.getCurrentWorkUnit();
+                    if (workUnit != null) {
+                        action.accept(workUnit.context.item.getId());
+                    }
+                } else if (executable instanceof Run) {
+                    action.accept(((Run<?, ?>) executable).getQueueId());
+                } else if (executable.getParentExecutable() instanceof Run) {
+                    action.accept(((Run<?, ?>) executable.getParentExecutable()).getQueueId());
+                }
+            }
         }
-        return Collections.unmodifiableSet(runningProjects);
+    }
+
+    /**
+     * Checks if a queue item can only run on nodes matching a label expression.
+     *
+     * @param item the queue item
+     * @param scope the label expression of the nodes
+     * @return true if all nodes the item can run on match the label expression
+     */
+    static boolean isBoundToNodes(final Queue.Item item, final Label scope) {
+        Label label = item.getAssignedLabel();
+        Collection<Node> nodes;
+        if (label == null) {
+            nodes = new ArrayList<Node>(Jenkins.get().getNodes());
+            nodes.add(Jenkins.get());
+        } else {
+            nodes = label.getNodes();
+        }
+        if (nodes.isEmpty()) {
+            return false;
+        }
+        for (Node node : nodes) {
+            if (!scope.matches(node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+   /**
+     * Return a set of queue ids of all currently running builds. All computers
+     * are walked once, see {@link #forEachRunningBuild(Consumer)}.
+     *
+     * @return set of running queue ids
+     */
+    public static Set<Long> getRunningQueueItemIds() {
+        Set<Long> runningQueueIds = ConcurrentHashMap.newKeySet();
+        forEachRunningBuild(run -> runningQueueIds.add(run.getQueueId()));
+        return Collections.unmodifiableSet(runningQueueIds);
     }
 
     /**
@@ -142,16 +248,7 @@ public final class QueueUtils {
         if (node != null) {
             Computer computer = node.toComputer();
             if (computer != null) {
-                List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
-                executors.addAll(computer.getOneOffExecutors());
-
-                for (Executor executor : executors) {
-                    Queue.Executable executable = executor.getCurrentExecutable();
-                    if (executable instanceof Run) {
-                        Run run = (Run) executable;
-                        runningProjects.add(run.getQueueId());
-                    }
-                }
+                forEachRunningBuild(computer, run -> runningProjects.add(run.getQueueId()));
             }
         }
 
@@ -160,18 +257,21 @@ public final class QueueUtils {
 
     /**
      * Gets the queue ids of all upstream projects that triggered argument queue item.
+     * The builds are looked up in the queue index and only loaded if they are
+     * unknown to it, see {@link QueueIndex#getUpstreamQueueId(Cause.UpstreamCause)}.
+     * As this may read builds from disk, it must not be called by the dispatcher.
      * @param item the queue item to find upstream projects for
      * @return set of upstream queue ids
      */
     public static Set<Long> getUpstreamQueueIds(final Queue.Item item) {
         Set<Long> upstreamQueueIds = new HashSet<Long>();
+        QueueIndex queueIndex = QueueIndex.get();
         for (Cause cause : item.getCauses()) {
             if (cause instanceof Cause.UpstreamCause) {
-                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
-                Run<?, ?> run = upstreamCause.getUpstreamRun();
+                long upstreamQueueId = queueIndex.getUpstreamQueueId((Cause.UpstreamCause) cause);
 
-                if (run != null) {
-                    upstreamQueueIds.add(run.getQueueId());
+                if (upstreamQueueId != Run.QUEUE_ID_UNKNOWN) {
+                    upstreamQueueIds.add(upstreamQueueId);
                 }
             }
         }
@@ -179,41 +279,56 @@ public final class QueueUtils {
     }
 
     /**
-     * Gets the queue ids of all owner tasks that are found in the queue.
+     * Checks whether any upstream project that triggered the argument queue item
+     * is permitted. In contrast to {@link #getUpstreamQueueIds(Queue.Item)} this
+     * method uses the upstream queue ids resolved by the queue index when the
+     * item entered the queue and stops at the first match.
+     * @param item the queue item to check the upstream projects for
+     * @param managementLink the management link holding the permitted queue ids
+     * @param queueIndex the queue index used to resolve the upstream builds
+     * @return true if at least one upstream queue id is permitted
+     */
+    public static boolean hasPermittedUpstreamQueueId(final Queue.Item item,
+                                                      final SafeQuietdownManagementLink managementLink,
+                                                      final QueueIndex queueIndex) {
+        return queueIndex.isInDownstreamClosure(item, managementLink);
+    }
+
+    /**
+     * Gets the queue ids of all owner tasks that are found in the queue. The
+     * owner tasks are resolved by the resolver of the queue index, which is
+     * shared by all lookups until the queue changes.
      * @param item the queue item to find owner queue ids for
      * @return set of upstream queue ids
      */
     public static Set<Long> getOwnerQueueIds(final Queue.Item item) {
-        Set<Long> ownerQueueIds = new HashSet<Long>();
-        Queue.Task childTask = item.task;
-        while (childTask != null) {
-            Queue.Task ownerTask = childTask.getOwnerTask();
-            if ((ownerTask != null) && (ownerTask != childTask)) {
-                for (Queue.Item ownerItem : Queue.getInstance().getItems(ownerTask)) {
-                    ownerQueueIds.add(ownerItem.getId());
-                }
-                childTask = ownerTask;
-            } else {
-                childTask = null;
-            }
-        }
-        return ownerQueueIds;
+        return QueueIndex.get().getOwnerChainResolver().getOwnerQueueIds(item);
+    }
+
+    /**
+     * Gets the queue ids of all owner tasks that are found in the given items.
+     * @param item the queue item to find owner queue ids for
+     * @param items the queue items to search for the owner tasks
+     * @return set of upstream queue ids
+     */
+    static Set<Long> getOwnerQueueIds(final Queue.Item item, final Collection<? extends Queue.Item> items) {
+        return new OwnerChainResolver(items).getOwnerQueueIds(item);
     }
 
     /**
      * Get the total number of buildable queue items.
+     * This method only reads a snapshot of the queue, it does not trigger
+     * a queue maintenance. So waiting items whose quiet period is over are
+     * counted as buildable until the next regular maintenance.
      * @return the total number of buildable queue items.
      */
     public static int getNumberOfBuildableQueueItems() {
-        Queue queue = Queue.getInstance();
-        queue.maintain();
-        int numberOfBuildableItems = queue.getPendingItems().size();
-        numberOfBuildableItems += queue.getBuildableItems().size();
+        int numberOfBuildableItems = 0;
 
         // Actually, we don't know whether a waiting item is buildable.
         // But we count it as buildable...
         for (Queue.Item item : Queue.getInstance().getItems()) {
-            if (item instanceof Queue.WaitingItem) {
+            if ((item instanceof Queue.BuildableItem) || (item instanceof Queue.WaitingItem)) {
                 ++numberOfBuildableItems;
             }
         }
@@ -221,30 +336,61 @@ public final class QueueUtils {
         return numberOfBuildableItems;
     }
 
+    /**
+     * Get the total number of blocked queue items.
+     * @return the total number of blocked queue items.
+     */
+    public static int getNumberOfBlockedQueueItems() {
+        int numberOfBlockedItems = 0;
+        for (Queue.Item item : Queue.getInstance().getItems()) {
+            if (item instanceof Queue.BlockedItem) {
+                ++numberOfBlockedItems;
+            }
+        }
+        return numberOfBlockedItems;
+    }
+
+    /**
+     * Get the number of buildable queue items that are permitted during the
+     * safe quietdown mode. Like {@link #getNumberOfBuildableQueueItems()},
+     * waiting items are counted as buildable.
+     * @param managementLink the management link holding the permitted queue ids
+     * @return the number of permitted buildable queue items.
+     */
+    public static int getNumberOfPermittedBuildableQueueItems(final SafeQuietdownManagementLink managementLink) {
+        int numberOfBuildableItems = 0;
+        for (Queue.Item item : Queue.getInstance().getItems()) {
+            if (((item instanceof Queue.BuildableItem) || (item instanceof Queue.WaitingItem))
+                && managementLink.isPermittedQueueId(item.getId())) {
+                ++numberOfBuildableItems;
+            }
+        }
+        return numberOfBuildableItems;
+    }
+
     /**
      * Get the total number of active builds.
      * @return the total number of active builds.
      */
     public static int getNumberOfActiveBuilds() {
-        int numActiveBuilds = 0;
-        List<Node> allNodes = new ArrayList<Node>(Jenkins.get().getNodes());
-        allNodes.add(Jenkins.get());
-
-        for (Node node : allNodes) {
-            Computer computer = node.toComputer();
-            if (computer != null) {
-                List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
-                executors.addAll(computer.getOneOffExecutors());
+        LongAdder numActiveBuilds = new LongAdder();
+        forEachRunningBuild(run -> numActiveBuilds.increment());
+        return numActiveBuilds.intValue();
+    }
 
-                for (Executor executor : executors) {
-                    Queue.Executable executable = executor.getCurrentExecutable();
-                    if (executable instanceof Run) {
-                        ++numActiveBuilds;
-                    }
-                }
+    /**
+     * Get the number of builds running on nodes matching a label expression.
+     * @param label the label expression
+     * @return the number of active builds on the matching nodes.
+     */
+    public static int getNumberOfActiveBuilds(final Label label) {
+        LongAdder numActiveBuilds = new LongAdder();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            Node node = computer.getNode();
+            if ((node != null) && label.matches(node)) {
+                forEachRunningBuild(computer, run -> numActiveBuilds.increment());
             }
         }
-
-        return numActiveBuilds;
+        return numActiveBuilds.intValue();
     }
 }
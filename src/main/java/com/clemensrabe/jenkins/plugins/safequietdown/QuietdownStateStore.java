@@ -0,0 +1,360 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Persists the state of the safe quietdown mode and the permitted queue ids,
+ * so a restart of Jenkins during the drain resumes the same drain.
+ * Changes are batched: the first change schedules a save on the Jenkins timer
+ * and all changes until then are written together, so the queue thread never
+ * writes to disk. The state is stored in a compact binary file as a list of
+ * queue ids can be large. The scheduled window the quietdown was activated
+ * for is stored as well, so it is released at the end of the window, and so
+ * is a running {@link RollingDrain}, so the quietdown of its current wave is
+ * still advanced and released after a restart.
+ */
+@Extension
+public class QuietdownStateStore {
+
+    private static final Logger LOGGER = Logger.getLogger(QuietdownStateStore.class.getName());
+
+    /** Magic number and version of the file format. */
+    private static final int MAGIC = 0x53514401;
+
+    /**
+     * Delay of saving the state after a change in milliseconds. Can be changed by the system property
+     * <code>com.clemensrabe.jenkins.plugins.safequietdown.QuietdownStateStore.saveDelayMillis</code>.
+     */
+    private static final long SAVE_DELAY_MILLIS =
+        SystemProperties.getLong(QuietdownStateStore.class.getName() + ".saveDelayMillis", 1000L);
+
+    /** @return the singleton instance */
+    public static QuietdownStateStore get() {
+        return ExtensionList.lookupSingleton(QuietdownStateStore.class);
+    }
+
+    /** Flag indicating whether a save is scheduled. */
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    /**
+     * Gets the file the state is stored in.
+     * @return the file
+     */
+    File getFile() {
+        return new File(Jenkins.get().getRootDir(), getClass().getPackage().getName() + ".state.bin");
+    }
+
+    /**
+     * Schedules saving the state, unless a save is already scheduled.
+     */
+    public void scheduleSave() {
+        if (savePending.compareAndSet(false, true)) {
+            Timer.get().schedule(this::saveIfPending, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Saves the state if a save is scheduled.
+     */
+    void saveIfPending() {
+        // Reset before taking the snapshot, so later changes schedule another save
+        if (savePending.compareAndSet(true, false)) {
+            try {
+                save(SafeQuietdownManagementLink.get());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the safe quietdown state", e);
+            }
+        }
+    }
+
+    /**
+     * Saves the state of the management link. The file is replaced atomically.
+     * @param link the management link
+     * @throws IOException if the file can't be written
+     */
+    synchronized void save(final SafeQuietdownManagementLink link) throws IOException {
+        File file = getFile();
+        Path tempFile = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                SafeQuietdownState state = link.getState();
+                out.writeUTF(state.name());
+                String scope = link.getScopeExpression();
+                out.writeUTF(scope == null ? "" : scope);
+                if (state.isQuietdownActive()) {
+                    writeIds(out, link.getPermittedQueueIds());
+                    writeIds(out, link.getFinishedQueueIds());
+                } else {
+                    writeIds(out, new long[0]);
+                    writeIds(out, new long[0]);
+                }
+                QuietdownWindowScheduler scheduler = QuietdownWindowScheduler.get();
+                out.writeLong(scheduler.getActivatedStart());
+                out.writeLong(scheduler.getActiveWindowEnd());
+                writeRollingDrain(out, RollingDrainScheduler.get().getCurrent());
+            }
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Loads the state into the management link, the window the quietdown
+     * was activated for into the {@link QuietdownWindowScheduler} and the
+     * running rolling drain into the {@link RollingDrainScheduler}.
+     * @param link the management link
+     * @return the restored state or null if no state was stored
+     * @throws IOException if the file can't be read
+     */
+    synchronized SafeQuietdownState load(final SafeQuietdownManagementLink link) throws IOException {
+        File file = getFile();
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown format of " + file);
+            }
+            SafeQuietdownState state;
+            try {
+                state = SafeQuietdownState.valueOf(in.readUTF());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown state in " + file, e);
+            }
+            String expression = in.readUTF();
+            Label scope = null;
+            if (!expression.isEmpty()) {
+                scope = Label.parseExpression(expression);
+            }
+            long[] permittedQueueIds = readIds(in);
+            long[] finishedQueueIds = readIds(in);
+            long windowStart = in.readLong();
+            long windowEnd = in.readLong();
+            RollingDrain drain = readRollingDrain(in);
+            link.restore(state, scope, permittedQueueIds, finishedQueueIds);
+            QuietdownWindowScheduler.get().restore(windowStart, state.isQuietdownActive() ? windowEnd : -1);
+            if (drain != null) {
+                RollingDrainScheduler.get().restore(drain);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Restores the state of the previous session after the jobs are loaded,
+     * before the queue starts to dispatch the restored items.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void restore() {
+        try {
+            SafeQuietdownState state = get().load(SafeQuietdownManagementLink.get());
+            if ((state != null) && state.isQuietdownActive()) {
+                LOGGER.log(Level.INFO, "Restored safe quietdown mode in state {0}.", state);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Failed to restore the safe quietdown state", e);
+        }
+    }
+
+    /**
+     * Resumes an interrupted activation and a restored rolling drain once the
+     * queue is loaded. The queue index is primed first, as the items restored
+     * from disk and the resumed builds don't send any events.
+     */
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void resumeActivation() {
+        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+        if (managementLink.isQuietdownActive()) {
+            QueueIndex.get().prime();
+            managementLink.resumeActivation();
+        }
+        RollingDrainScheduler.get().resume();
+    }
+
+    /**
+     * Writes a pending change when Jenkins stops.
+     */
+    @Terminator
+    public static void flush() {
+        get().saveIfPending();
+    }
+
+    /**
+     * Writes a rolling drain that is not done yet. The rolling drain is
+     * copied while holding its lock, so the stored state is consistent.
+     * @param out the output stream
+     * @param drain the rolling drain or null
+     * @throws IOException if the rolling drain can't be written
+     */
+    private static void writeRollingDrain(final DataOutputStream out, final RollingDrain drain) throws IOException {
+        if (drain == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        RollingDrainState state;
+        int numberOfWaves;
+        List<String> pendingNodes;
+        List<String> currentWave;
+        List<String> drainedNodes;
+        synchronized (drain) {
+            state = drain.getState();
+            numberOfWaves = drain.getNumberOfWaves();
+            pendingNodes = drain.getPendingNodes();
+            currentWave = drain.getCurrentWave();
+            drainedNodes = drain.getDrainedNodes();
+        }
+        if (state.isDone()) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeUTF(state.name());
+        out.writeInt(numberOfWaves);
+        out.writeInt(drain.getWaveSize());
+        out.writeInt(drain.getMinExecutors());
+        out.writeBoolean(drain.isTakeOffline());
+        writeNames(out, pendingNodes);
+        writeNames(out, currentWave);
+        writeNames(out, drainedNodes);
+    }
+
+    /**
+     * Reads a rolling drain.
+     * @param in the input stream
+     * @return the rolling drain or null if no rolling drain was running
+     * @throws IOException if the rolling drain can't be read
+     */
+    private static RollingDrain readRollingDrain(final DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        RollingDrainState state;
+        try {
+            state = RollingDrainState.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown rolling drain state", e);
+        }
+        int numberOfWaves = in.readInt();
+        int waveSize = in.readInt();
+        int minExecutors = in.readInt();
+        boolean takeOffline = in.readBoolean();
+        List<String> pendingNodes = readNames(in);
+        List<String> currentWave = readNames(in);
+        List<String> drainedNodes = readNames(in);
+        return new RollingDrain(pendingNodes, currentWave, drainedNodes, waveSize, minExecutors, takeOffline,
+                                state, numberOfWaves);
+    }
+
+    /**
+     * Writes a list of node names.
+     * @param out the output stream
+     * @param names the node names
+     * @throws IOException if the names can't be written
+     */
+    private static void writeNames(final DataOutputStream out, final List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    /**
+     * Reads a list of node names.
+     * @param in the input stream
+     * @return the node names
+     * @throws IOException if the names can't be read
+     */
+    private static List<String> readNames(final DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid number of node names: " + length);
+        }
+        List<String> names = new ArrayList<String>(length);
+        for (int i = 0; i < length; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    /**
+     * Writes a list of queue ids.
+     * @param out the output stream
+     * @param ids the queue ids
+     * @throws IOException if the ids can't be written
+     */
+    private static void writeIds(final DataOutputStream out, final long[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    /**
+     * Reads a list of queue ids.
+     * @param in the input stream
+     * @return the queue ids
+     * @throws IOException if the ids can't be read
+     */
+    private static long[] readIds(final DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid number of queue ids: " + length);
+        }
+        long[] ids = new long[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = in.readLong();
+        }
+        return ids;
+    }
+}
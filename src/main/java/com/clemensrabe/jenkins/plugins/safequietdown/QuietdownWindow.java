@@ -0,0 +1,152 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.scheduler.CronTab;
+import hudson.util.FormValidation;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * A scheduled maintenance window. The safe quietdown mode is activated ahead
+ * of the start of the window, so that the controller is idle when the window
+ * starts, and cancelled when the window is over.
+ */
+public class QuietdownWindow extends AbstractDescribableImpl<QuietdownWindow> {
+
+    /** The cron expression of the start of the window. */
+    private final String spec;
+
+    /** The duration of the window in minutes. */
+    private final int durationMinutes;
+
+    /**
+     * Constructor.
+     * @param spec the cron expression of the start of the window
+     * @param durationMinutes the duration of the window in minutes
+     */
+    @DataBoundConstructor
+    public QuietdownWindow(final String spec, final int durationMinutes) {
+        this.spec = StringUtils.trimToEmpty(spec);
+        this.durationMinutes = durationMinutes;
+    }
+
+    /**
+     * Gets the cron expression of the start of the window.
+     * @return the cron expression
+     */
+    public String getSpec() {
+        return spec;
+    }
+
+    /**
+     * Gets the duration of the window.
+     * @return the duration in minutes
+     */
+    public int getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    /**
+     * Gets the start of the window that is open at the given time or, if no
+     * window is open, the start of the next window.
+     * @param now the current time in milliseconds
+     * @return the start in milliseconds or -1 if the cron expression is invalid or never matches
+     */
+    public long getStartMillis(final long now) {
+        try {
+            CronTab cronTab = new CronTab(spec);
+            Calendar previous = cronTab.floor(now);
+            if ((previous != null) && (now < getEndMillis(previous.getTimeInMillis()))) {
+                return previous.getTimeInMillis();
+            }
+            Calendar next = cronTab.ceil(now);
+            if (next != null) {
+                return next.getTimeInMillis();
+            }
+        } catch (IllegalArgumentException e) {
+            // Invalid or impossible cron expression
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the end of a window.
+     * @param startMillis the start of the window in milliseconds
+     * @return the end of the window in milliseconds
+     */
+    public long getEndMillis(final long startMillis) {
+        return startMillis + TimeUnit.MINUTES.toMillis(durationMinutes);
+    }
+
+    /**
+     * The descriptor of the quietdown window.
+     */
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<QuietdownWindow> {
+
+        /**
+         * Gets the name shown in the configuration.
+         * @return the display name
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.QuietdownWindow_DisplayName();
+        }
+
+        /**
+         * Checks the cron expression of the start of the window.
+         * @param value the cron expression
+         * @return the form validation result
+         */
+        public FormValidation doCheckSpec(final @QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error(Messages.Err_QuietdownWindowSpecMissing());
+            }
+            try {
+                new CronTab(value.trim());
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Checks the duration of the window.
+         * @param value the duration in minutes
+         * @return the form validation result
+         */
+        public FormValidation doCheckDurationMinutes(final @QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.PeriodicWork;
+import jenkins.util.SystemProperties;
+
+/**
+ * Activates the safe quietdown mode ahead of the scheduled
+ * {@link QuietdownWindow}s and cancels it when the window is over.
+ * The quietdown is activated once the estimated remaining duration of the
+ * running builds and a safety margin reach the start of the window, so it
+ * is activated early under load and late on an idle controller.
+ * A quietdown activated manually is never cancelled, and a scheduled
+ * quietdown cancelled manually is not activated again for the same window.
+ * The window the quietdown was activated for is persisted by the
+ * {@link QuietdownStateStore}, so a quietdown restored after a restart
+ * is still released at the end of its window.
+ */
+@Extension
+public class QuietdownWindowScheduler extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(QuietdownWindowScheduler.class.getName());
+
+    /**
+     * Safety margin added to the estimated drain time in milliseconds. Can be changed by the system property
+     * <code>com.clemensrabe.jenkins.plugins.safequietdown.QuietdownWindowScheduler.leadMarginMillis</code>.
+     */
+    private static final long LEAD_MARGIN_MILLIS =
+        SystemProperties.getLong(QuietdownWindowScheduler.class.getName() + ".leadMarginMillis", 300000L);
+
+    /**
+     * Flag to disable the periodic checks, e.g., for tests driving the scheduler themselves. Can be set by the
+     * system property <code>com.clemensrabe.jenkins.plugins.safequietdown.QuietdownWindowScheduler.disabled</code>.
+     */
+    private static volatile boolean disabled =
+        SystemProperties.getBoolean(QuietdownWindowScheduler.class.getName() + ".disabled");
+
+    /** @return the singleton instance */
+    public static QuietdownWindowScheduler get() {
+        return ExtensionList.lookupSingleton(QuietdownWindowScheduler.class);
+    }
+
+    /** Start of the last window the quietdown was activated for, or -1. */
+    private long activatedStart = -1;
+
+    /** End of the window the quietdown is active for, or -1 if it was not activated by a window. */
+    private long activeWindowEnd = -1;
+
+    /** The clock providing the current time in milliseconds. */
+    private volatile LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Gets the period between two checks.
+     * @return the recurrence period in milliseconds
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    /**
+     * Checks the scheduled windows and, while the quietdown is active, if the
+     * queue sorter of the safe quietdown is still installed.
+     */
+    @Override
+    protected void doRun() {
+        if (!disabled) {
+            check();
+        }
+        if (SafeQuietdownManagementLink.get().isQuietdownActive()) {
+            SafeQuietdownQueueSorter.checkInstalled();
+        }
+    }
+
+    /**
+     * Disables or enables the periodic checks.
+     * @param disable true to disable the periodic checks
+     */
+    static void setDisabled(final boolean disable) {
+        disabled = disable;
+    }
+
+    /**
+     * Sets the clock providing the current time.
+     * @param clock the clock returning the current time in milliseconds
+     */
+    void setClock(final LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the start of the last window the quietdown was activated for.
+     * @return the start in milliseconds or -1 if the quietdown was not activated by a window yet
+     */
+    public synchronized long getActivatedStart() {
+        return activatedStart;
+    }
+
+    /**
+     * Gets the end of the window the quietdown is active for.
+     * @return the end in milliseconds or -1 if the quietdown was not activated by a window
+     */
+    public synchronized long getActiveWindowEnd() {
+        return activeWindowEnd;
+    }
+
+    /**
+     * Restores the window the quietdown was activated for in the previous session.
+     * @param start the start of the last window the quietdown was activated for or -1
+     * @param end the end of the window the restored quietdown is active for or -1
+     */
+    synchronized void restore(final long start, final long end) {
+        activatedStart = start;
+        activeWindowEnd = end;
+    }
+
+    /**
+     * Activates the quietdown ahead of the next window or cancels it after the window.
+     */
+    synchronized void check() {
+        final long now = clock.getAsLong();
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+
+        if (activeWindowEnd >= 0) {
+            if (!link.isQuietdownActive()) {
+                // Cancelled manually
+                activeWindowEnd = -1;
+            } else if (now >= activeWindowEnd) {
+                LOGGER.log(Level.INFO, "Scheduled quietdown window is over, cancelling the safe quietdown mode.");
+                link.performToggleQuietdown();
+                activeWindowEnd = -1;
+                QuietdownStateStore.get().scheduleSave();
+            }
+            return;
+        }
+
+        if (link.isQuietdownActive() || isRollingDrainRunning()) {
+            return;
+        }
+
+        long leadMillis = -1;
+        for (QuietdownWindow window : SafeQuietdownConfiguration.get().getWindows()) {
+            long start = window.getStartMillis(now);
+            if ((start < 0) || (start == activatedStart)) {
+                continue;
+            }
+
+            // The estimate is computed at most once per check
+            if (leadMillis < 0) {
+                leadMillis = DrainEstimator.get().compute().getRemainingMillis() + LEAD_MARGIN_MILLIS;
+            }
+            if (now + leadMillis >= start) {
+                LOGGER.log(Level.INFO, "Activating the safe quietdown mode {0} s ahead of the scheduled window.",
+                           TimeUnit.MILLISECONDS.toSeconds(Math.max(0, start - now)));
+                link.performToggleQuietdown();
+                activatedStart = start;
+                activeWindowEnd = window.getEndMillis(start);
+                QuietdownStateStore.get().scheduleSave();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks if a rolling drain is running, which controls the quietdown itself.
+     * @return true if a rolling drain is running
+     */
+    private static boolean isRollingDrainRunning() {
+        RollingDrain drain = RollingDrainScheduler.get().getCurrent();
+        return (drain != null) && !drain.isDone();
+    }
+}
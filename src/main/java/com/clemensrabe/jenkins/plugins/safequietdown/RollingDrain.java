@@ -0,0 +1,504 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+
+/**
+ * Drains a set of nodes in waves. Each wave is drained by a safe quietdown
+ * restricted to the nodes of the wave. Once all builds on these nodes are
+ * finished, the nodes are optionally taken offline, the
+ * {@link RollingDrainListener}s are notified and the quietdown is deactivated
+ * after the listeners returned.
+ * A wave is only started if the free executors of the online nodes outside of
+ * the wave don't drop below the configured minimum. While no wave can be
+ * started, the reason is logged and exported by {@link #getWaitingReason()}.
+ * The rolling drain is advanced by the {@link RollingDrainScheduler} and
+ * persisted by the {@link QuietdownStateStore}, so it resumes after a restart
+ * together with the quietdown of its current wave. The
+ * listeners are notified after the state is updated and outside of the lock
+ * of the rolling drain, so a slow listener does not block the getters.
+ */
+@ExportedBean
+public final class RollingDrain {
+
+    private static final Logger LOGGER = Logger.getLogger(RollingDrain.class.getName());
+
+    /** Divisor of the percentage of nodes per wave. */
+    private static final int PERCENT = 100;
+
+    /** Names of the nodes not drained yet. */
+    private final Deque<String> pendingNodes;
+
+    /** Names of the nodes of the current wave. */
+    private final List<String> currentWave = new ArrayList<String>();
+
+    /** Names of the drained nodes. */
+    private final List<String> drainedNodes = new ArrayList<String>();
+
+    /** Maximum number of nodes per wave. */
+    private final int waveSize;
+
+    /** Minimum number of idle executors that stay free on the nodes outside of the wave. */
+    private final int minExecutors;
+
+    /** Flag indicating whether the drained nodes are taken offline. */
+    private final boolean takeOffline;
+
+    /** The current state. */
+    private RollingDrainState state;
+
+    /** Number of started waves. */
+    private int numberOfWaves;
+
+    /** Reason why the next wave is not started yet, null if not waiting. */
+    private String waitingReason;
+
+    /** Notifications of the listeners that are not fired yet. */
+    private final List<Runnable> notifications = new ArrayList<Runnable>();
+
+    /**
+     * Constructor.
+     * @param nodeNames the names of the nodes to drain in the order of draining
+     * @param nodesPerWave the maximum number of nodes per wave, used if percentPerWave is not positive
+     * @param percentPerWave the maximum percentage of the nodes per wave
+     * @param minExecutors the minimum number of idle executors that stay free
+     * @param takeOffline true to take the drained nodes offline
+     */
+    RollingDrain(final List<String> nodeNames, final int nodesPerWave, final int percentPerWave,
+                 final int minExecutors, final boolean takeOffline) {
+        this(nodeNames, Collections.<String>emptyList(), Collections.<String>emptyList(),
+             getWaveSize(nodeNames.size(), nodesPerWave, percentPerWave), minExecutors, takeOffline,
+             RollingDrainState.WAITING, 0);
+    }
+
+    /**
+     * Constructor used to restore a persisted rolling drain.
+     * @param pendingNodes the names of the nodes not drained yet
+     * @param currentWave the names of the nodes of the current wave
+     * @param drainedNodes the names of the drained nodes
+     * @param waveSize the maximum number of nodes per wave
+     * @param minExecutors the minimum number of idle executors that stay free
+     * @param takeOffline true to take the drained nodes offline
+     * @param state the state
+     * @param numberOfWaves the number of started waves
+     */
+    RollingDrain(final List<String> pendingNodes, final List<String> currentWave, final List<String> drainedNodes,
+                 final int waveSize, final int minExecutors, final boolean takeOffline,
+                 final RollingDrainState state, final int numberOfWaves) {
+        this.pendingNodes = new ArrayDeque<String>(pendingNodes);
+        this.currentWave.addAll(currentWave);
+        this.drainedNodes.addAll(drainedNodes);
+        this.waveSize = waveSize;
+        this.minExecutors = minExecutors;
+        this.takeOffline = takeOffline;
+        this.state = state;
+        this.numberOfWaves = numberOfWaves;
+    }
+
+    /**
+     * Computes the maximum number of nodes per wave.
+     * @param numberOfNodes the number of nodes to drain
+     * @param nodesPerWave the maximum number of nodes per wave, used if percentPerWave is not positive
+     * @param percentPerWave the maximum percentage of the nodes per wave
+     * @return the wave size, at least one
+     */
+    private static int getWaveSize(final int numberOfNodes, final int nodesPerWave, final int percentPerWave) {
+        if (percentPerWave > 0) {
+            return Math.max(1, (numberOfNodes * percentPerWave + PERCENT - 1) / PERCENT);
+        }
+        return Math.max(1, nodesPerWave);
+    }
+
+    /**
+     * Gets the current state.
+     * @return the state
+     */
+    @Exported
+    public synchronized RollingDrainState getState() {
+        return state;
+    }
+
+    /**
+     * Gets the reason why the next wave is not started yet.
+     * @return the reason or null if the rolling drain is not waiting
+     */
+    @Exported
+    public synchronized String getWaitingReason() {
+        return waitingReason;
+    }
+
+    /**
+     * Checks if the rolling drain is finished or cancelled.
+     * @return true if the rolling drain is done
+     */
+    public synchronized boolean isDone() {
+        return state.isDone();
+    }
+
+    /**
+     * Gets the maximum number of nodes per wave.
+     * @return the wave size
+     */
+    @Exported
+    public int getWaveSize() {
+        return waveSize;
+    }
+
+    /**
+     * Gets the minimum number of idle executors that stay free on the nodes outside of the wave.
+     * @return the minimum number of idle executors
+     */
+    @Exported
+    public int getMinExecutors() {
+        return minExecutors;
+    }
+
+    /**
+     * Checks if the drained nodes are taken offline.
+     * @return true if the drained nodes are taken offline
+     */
+    @Exported
+    public boolean isTakeOffline() {
+        return takeOffline;
+    }
+
+    /**
+     * Gets the number of started waves.
+     * @return the number of waves
+     */
+    @Exported
+    public synchronized int getNumberOfWaves() {
+        return numberOfWaves;
+    }
+
+    /**
+     * Gets the names of the nodes not drained yet.
+     * @return the node names
+     */
+    @Exported
+    public synchronized List<String> getPendingNodes() {
+        return Collections.unmodifiableList(new ArrayList<String>(pendingNodes));
+    }
+
+    /**
+     * Gets the names of the nodes of the current wave.
+     * @return the node names
+     */
+    @Exported
+    public synchronized List<String> getCurrentWave() {
+        return Collections.unmodifiableList(new ArrayList<String>(currentWave));
+    }
+
+    /**
+     * Gets the names of the drained nodes.
+     * @return the node names
+     */
+    @Exported
+    public synchronized List<String> getDrainedNodes() {
+        return Collections.unmodifiableList(new ArrayList<String>(drainedNodes));
+    }
+
+    /**
+     * Advances the rolling drain: starts the next wave if possible or
+     * completes the current wave if all its nodes are drained.
+     * @param link the management link
+     */
+    void tick(final SafeQuietdownManagementLink link) {
+        synchronized (this) {
+            if (state == RollingDrainState.WAITING) {
+                startWave(link);
+            } else if (state == RollingDrainState.DRAINING) {
+                if (!link.isQuietdownActive()) {
+                    LOGGER.info("Safe quietdown was deactivated, cancelling the rolling drain.");
+                    done(RollingDrainState.CANCELLED);
+                } else if ((link.getState() != SafeQuietdownState.ACTIVATING) && isWaveDrained(link)) {
+                    finishWave(link);
+                }
+            }
+        }
+        fireNotifications();
+    }
+
+    /**
+     * Cancels the rolling drain. Deactivates the quietdown of the current wave.
+     * @param link the management link
+     */
+    void cancel(final SafeQuietdownManagementLink link) {
+        synchronized (this) {
+            if (state.isDone()) {
+                return;
+            }
+            if ((state == RollingDrainState.DRAINING) && link.isQuietdownActive()) {
+                link.performToggleQuietdown();
+            }
+            done(RollingDrainState.CANCELLED);
+        }
+        fireNotifications();
+    }
+
+    /**
+     * Fires the pending notifications of the listeners. Must not be called
+     * while holding the lock of the rolling drain.
+     */
+    private void fireNotifications() {
+        List<Runnable> pending;
+        synchronized (this) {
+            if (notifications.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<Runnable>(notifications);
+            notifications.clear();
+        }
+        for (Runnable notification : pending) {
+            notification.run();
+        }
+    }
+
+    /**
+     * Starts the next wave if another quietdown is not active and enough executors are available.
+     * @param link the management link
+     */
+    private void startWave(final SafeQuietdownManagementLink link) {
+        if (pendingNodes.isEmpty()) {
+            done(RollingDrainState.FINISHED);
+            return;
+        }
+        if (link.isQuietdownActive()) {
+            setWaitingReason(Messages.RollingDrainWaitingForQuietdown());
+            return;
+        }
+
+        int freeExecutors = selectWave();
+        if (currentWave.isEmpty()) {
+            if (pendingNodes.isEmpty()) {
+                done(RollingDrainState.FINISHED);
+            } else {
+                setWaitingReason(Messages.RollingDrainWaitingForExecutors(freeExecutors, minExecutors));
+            }
+            return;
+        }
+        waitingReason = null;
+
+        StringBuilder expression = new StringBuilder();
+        for (String nodeName : currentWave) {
+            if (expression.length() > 0) {
+                expression.append("||");
+            }
+            expression.append(LabelAtom.escape(nodeName));
+        }
+        ++numberOfWaves;
+        state = RollingDrainState.DRAINING;
+        LOGGER.info(String.format("Starting wave %d of the rolling drain with the nodes %s.",
+                                  numberOfWaves, currentWave));
+        link.performToggleQuietdown(Label.parseExpression(expression.toString()));
+        QuietdownStateStore.get().scheduleSave();
+    }
+
+    /**
+     * Logs the reason why the next wave is not started if it changed.
+     * @param reason the reason
+     */
+    private void setWaitingReason(final String reason) {
+        if (!reason.equals(waitingReason)) {
+            LOGGER.info(String.format("Rolling drain waits before wave %d: %s", numberOfWaves + 1, reason));
+            waitingReason = reason;
+        }
+    }
+
+    /**
+     * Moves the nodes of the next wave from the pending nodes to the current
+     * wave. Nodes that would reduce the free executors of the online nodes
+     * outside of the wave below the minimum are skipped and stay pending,
+     * nodes that no longer exist are dropped.
+     * @return the number of free executors outside of the selected wave
+     */
+    private int selectWave() {
+        int freeExecutors = 0;
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (!currentWave.contains(computer.getName())) {
+                freeExecutors += getFreeExecutors(computer);
+            }
+        }
+        Iterator<String> iterator = pendingNodes.iterator();
+        while ((currentWave.size() < waveSize) && iterator.hasNext()) {
+            String nodeName = iterator.next();
+            Node node = Jenkins.get().getNode(nodeName);
+            if (node == null) {
+                iterator.remove();
+                continue;
+            }
+            int executors = getFreeExecutors(node.toComputer());
+            if (freeExecutors - executors < minExecutors) {
+                continue;
+            }
+            freeExecutors -= executors;
+            currentWave.add(nodeName);
+            iterator.remove();
+        }
+        return freeExecutors;
+    }
+
+    /**
+     * Checks if the nodes of the current wave are drained, i.e., no builds are
+     * running on them and no permitted queue items are waiting for an executor
+     * that only the nodes of the wave can provide. Permitted items that can
+     * run on other nodes don't hold back the wave, as they would otherwise
+     * stall the rolling drain if all queued items are permitted.
+     * @param link the management link
+     * @return true if the wave is drained
+     */
+    private boolean isWaveDrained(final SafeQuietdownManagementLink link) {
+        for (String nodeName : currentWave) {
+            if (!QueueUtils.getRunningQueueItemIds(nodeName).isEmpty()) {
+                return false;
+            }
+        }
+        for (Queue.Item item : Queue.getInstance().getItems()) {
+            if (((item instanceof Queue.BuildableItem) || (item instanceof Queue.WaitingItem))
+                && link.isPermittedQueueId(item.getId()) && isBoundToWave(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a queue item can only run on the nodes of the current wave.
+     * @param item the queue item
+     * @return true if all nodes the item can run on belong to the current wave
+     */
+    private boolean isBoundToWave(final Queue.Item item) {
+        Label label = item.getAssignedLabel();
+        Collection<Node> nodes;
+        if (label == null) {
+            nodes = new ArrayList<Node>(Jenkins.get().getNodes());
+            nodes.add(Jenkins.get());
+        } else {
+            nodes = label.getNodes();
+        }
+        if (nodes.isEmpty()) {
+            return false;
+        }
+        for (Node node : nodes) {
+            if (!currentWave.contains(node.getNodeName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Completes the current wave: takes its nodes offline if requested,
+     * notifies the listeners and deactivates the quietdown once the listeners
+     * returned. The next wave is not started before the quietdown is
+     * deactivated.
+     * @param link the management link
+     */
+    private void finishWave(final SafeQuietdownManagementLink link) {
+        for (String nodeName : currentWave) {
+            Node node = Jenkins.get().getNode(nodeName);
+            if (node == null) {
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (takeOffline && (computer != null)) {
+                computer.setTemporarilyOffline(true, OfflineCause.create(Messages._RollingDrainOffline()));
+            }
+            notifications.add(() -> RollingDrainListener.fireNodeDrained(node));
+        }
+
+        List<String> wave = Collections.unmodifiableList(new ArrayList<String>(currentWave));
+        drainedNodes.addAll(currentWave);
+        currentWave.clear();
+        LOGGER.info(String.format("Finished wave %d of the rolling drain with the nodes %s.", numberOfWaves, wave));
+        notifications.add(() -> RollingDrainListener.fireWaveFinished(wave));
+        Label waveScope = link.getScope();
+        notifications.add(() -> releaseWave(link, waveScope));
+
+        if (pendingNodes.isEmpty()) {
+            done(RollingDrainState.FINISHED);
+        } else {
+            state = RollingDrainState.WAITING;
+            QuietdownStateStore.get().scheduleSave();
+        }
+    }
+
+    /**
+     * Deactivates the quietdown of a finished wave. Called after the listeners
+     * of the wave returned, so no build is dispatched to the drained nodes
+     * while the listeners run. Does nothing if the quietdown of the wave was
+     * deactivated in the meantime.
+     * @param link the management link
+     * @param waveScope the scope of the quietdown of the wave
+     */
+    private static void releaseWave(final SafeQuietdownManagementLink link, final Label waveScope) {
+        if (link.isQuietdownActive() && (link.getScope() == waveScope)) {
+            link.performToggleQuietdown();
+        }
+    }
+
+    /**
+     * Ends the rolling drain and notifies the listeners.
+     * @param newState the final state
+     */
+    private void done(final RollingDrainState newState) {
+        state = newState;
+        waitingReason = null;
+        LOGGER.info(String.format("Rolling drain %s after %d waves.", newState, numberOfWaves));
+        QuietdownStateStore.get().scheduleSave();
+        notifications.add(() -> RollingDrainListener.fireDone(this));
+    }
+
+    /**
+     * Gets the number of idle executors of a computer if it is online and accepts tasks.
+     * @param computer the computer or null
+     * @return the number of free executors
+     */
+    private static int getFreeExecutors(final Computer computer) {
+        if ((computer != null) && computer.isOnline() && computer.isAcceptingTasks()) {
+            return computer.countIdle();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Node;
+
+/**
+ * Receives notifications about the progress of a rolling drain, e.g., to
+ * start the maintenance of the drained nodes.
+ */
+public abstract class RollingDrainListener implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(RollingDrainListener.class.getName());
+
+    /**
+     * Called for every node of a wave once all builds on the nodes of the wave are finished.
+     * @param node the drained node
+     */
+    public void onNodeDrained(final Node node) {
+    }
+
+    /**
+     * Called when all nodes of a wave are drained. The quietdown of the wave
+     * is deactivated after all listeners returned.
+     * @param nodeNames the names of the nodes of the wave
+     */
+    public void onWaveFinished(final List<String> nodeNames) {
+    }
+
+    /**
+     * Called when the rolling drain is finished or cancelled.
+     * @param drain the rolling drain
+     */
+    public void onDone(final RollingDrain drain) {
+    }
+
+    /**
+     * Gets all registered listeners.
+     * @return the listeners
+     */
+    public static ExtensionList<RollingDrainListener> all() {
+        return ExtensionList.lookup(RollingDrainListener.class);
+    }
+
+    /**
+     * Notifies all listeners about a drained node.
+     * @param node the drained node
+     */
+    static void fireNodeDrained(final Node node) {
+        for (RollingDrainListener listener : all()) {
+            try {
+                listener.onNodeDrained(node);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Listener " + listener + " failed for drained node " + node.getNodeName(), e);
+            }
+        }
+    }
+
+    /**
+     * Notifies all listeners about a finished wave.
+     * @param nodeNames the names of the nodes of the wave
+     */
+    static void fireWaveFinished(final List<String> nodeNames) {
+        for (RollingDrainListener listener : all()) {
+            try {
+                listener.onWaveFinished(nodeNames);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Listener " + listener + " failed for finished wave", e);
+            }
+        }
+    }
+
+    /**
+     * Notifies all listeners about the end of a rolling drain.
+     * @param drain the rolling drain
+     */
+    static void fireDone(final RollingDrain drain) {
+        for (RollingDrainListener listener : all()) {
+            try {
+                listener.onDone(drain);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Listener " + listener + " failed for finished rolling drain", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Label;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Starts, advances and cancels the {@link RollingDrain}. Only one rolling
+ * drain can run at a time. It is advanced periodically on the Jenkins timer.
+ */
+@Extension
+public class RollingDrainScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(RollingDrainScheduler.class.getName());
+
+    /**
+     * Interval of the checks of the rolling drain in milliseconds. Can be changed by the system property
+     * <code>com.clemensrabe.jenkins.plugins.safequietdown.RollingDrainScheduler.intervalMillis</code>.
+     */
+    private static final long INTERVAL_MILLIS =
+        SystemProperties.getLong(RollingDrainScheduler.class.getName() + ".intervalMillis", 5000L);
+
+    /** @return the singleton instance */
+    public static RollingDrainScheduler get() {
+        return ExtensionList.lookupSingleton(RollingDrainScheduler.class);
+    }
+
+    /** The current or last rolling drain. */
+    private RollingDrain current;
+
+    /** The periodic check of the current rolling drain. */
+    private ScheduledFuture<?> future;
+
+    /**
+     * Starts a rolling drain of all agents matching a label expression.
+     * The agents are drained in the order of their names.
+     * @param nodes the label expression of the agents to drain or null for all agents
+     * @param nodesPerWave the maximum number of nodes per wave, used if percentPerWave is not positive
+     * @param percentPerWave the maximum percentage of the nodes per wave
+     * @param minExecutors the minimum number of idle executors that stay free
+     * @param takeOffline true to take the drained nodes offline
+     * @return the started rolling drain
+     * @throws IllegalStateException if a rolling drain is running or the safe quietdown mode is active
+     */
+    public synchronized RollingDrain start(final Label nodes, final int nodesPerWave, final int percentPerWave,
+                                           final int minExecutors, final boolean takeOffline) {
+        if ((current != null) && !current.isDone()) {
+            throw new IllegalStateException(Messages.Err_RollingDrainAlreadyRunning());
+        }
+        if (SafeQuietdownManagementLink.get().isQuietdownActive()) {
+            throw new IllegalStateException(Messages.Err_QuietdownAlreadyActive());
+        }
+
+        List<String> nodeNames = new ArrayList<String>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if ((nodes == null) || nodes.matches(node)) {
+                nodeNames.add(node.getNodeName());
+            }
+        }
+        Collections.sort(nodeNames);
+
+        current = new RollingDrain(nodeNames, nodesPerWave, percentPerWave, minExecutors, takeOffline);
+        future = Timer.get().scheduleWithFixedDelay(this::tick, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        QuietdownStateStore.get().scheduleSave();
+        return current;
+    }
+
+    /**
+     * Restores the rolling drain of the previous session. It is not advanced
+     * before {@link #resume()} is called.
+     * @param drain the restored rolling drain
+     */
+    synchronized void restore(final RollingDrain drain) {
+        current = drain;
+    }
+
+    /**
+     * Starts the periodic check of a restored rolling drain that is not done yet.
+     */
+    synchronized void resume() {
+        if ((current != null) && !current.isDone() && (future == null)) {
+            LOGGER.log(Level.INFO, "Resuming the rolling drain in state {0}.", current.getState());
+            future = Timer.get().scheduleWithFixedDelay(this::tick, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels the running rolling drain. The listeners are notified outside
+     * of the lock of the scheduler, so a slow listener does not block it.
+     * @return true if a rolling drain was cancelled
+     */
+    public boolean cancel() {
+        RollingDrain drain;
+        synchronized (this) {
+            if ((current == null) || current.isDone()) {
+                return false;
+            }
+            drain = current;
+            stop();
+        }
+        drain.cancel(SafeQuietdownManagementLink.get());
+        return true;
+    }
+
+    /**
+     * Gets the current or last rolling drain.
+     * @return the rolling drain or null if none was started
+     */
+    public synchronized RollingDrain getCurrent() {
+        return current;
+    }
+
+    /**
+     * Advances the current rolling drain and stops the periodic check once it is done.
+     */
+    void tick() {
+        RollingDrain drain = getCurrent();
+        if (drain == null) {
+            return;
+        }
+        // An exception would suppress all further executions of the periodic check
+        try {
+            drain.tick(SafeQuietdownManagementLink.get());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to advance the rolling drain", e);
+        }
+        if (drain.isDone()) {
+            synchronized (this) {
+                if (drain == current) {
+                    stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic check.
+     */
+    private void stop() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+}
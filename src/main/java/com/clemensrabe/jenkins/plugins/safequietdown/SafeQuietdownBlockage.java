@@ -24,20 +24,61 @@
 
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
 import hudson.model.queue.CauseOfBlockage;
 
+import org.apache.commons.lang.StringUtils;
+import org.jvnet.localizer.LocaleProvider;
+
 /**
  * Blockage set when the safe quiet down prevents a job from running.
+ * The blockage is immutable and shared by all blocked items. It shows the
+ * configured quietdown message and, as no message is configured by default,
+ * caches the localized default description per locale, as it is rendered for
+ * every blocked item whenever the queue is displayed.
  */
-public class SafeQuietdownBlockage extends CauseOfBlockage {
+public final class SafeQuietdownBlockage extends CauseOfBlockage {
+
+    /** The configured quietdown message. */
+    private final String quietdownMessage;
+
+    /**
+     * The localized default descriptions by locale. As the quietdown message
+     * of a blockage never changes, the cache is effectively keyed by message
+     * and locale.
+     */
+    private final ConcurrentHashMap<Locale, String> descriptions = new ConcurrentHashMap<Locale, String>();
+
+    /**
+     * Constructor.
+     * @param quietdownMessage the configured quietdown message
+     */
+    public SafeQuietdownBlockage(final String quietdownMessage) {
+        this.quietdownMessage = quietdownMessage;
+    }
+
+    /**
+     * Gets the quietdown message configured when this blockage was created.
+     * @return the quietdown message
+     */
+    public String getQuietdownMessage() {
+        return quietdownMessage;
+    }
 
     /**
-     * Get the description of the blockage cause.
+     * Get the description of the blockage cause. This is the configured
+     * quietdown message or, if none is configured, the localized default.
      * @return description of the blockage cause
      */
     @Override
     public String getShortDescription() {
-        return Messages.GoingToShutDown();
+        if (StringUtils.isNotBlank(quietdownMessage)) {
+            return quietdownMessage;
+        }
+        return descriptions.computeIfAbsent(LocaleProvider.getLocale(),
+                                            locale -> Messages._GoingToShutDown().toString(locale));
     }
 
 }
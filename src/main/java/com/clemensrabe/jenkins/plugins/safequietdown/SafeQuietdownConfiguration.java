@@ -24,13 +24,20 @@
 
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.util.FormValidation;
 import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * The global configuration of the safequietdown plugin.
@@ -43,8 +50,14 @@ public class SafeQuietdownConfiguration extends GlobalConfiguration {
         return ExtensionList.lookupSingleton(SafeQuietdownConfiguration.class);
     }
 
-    private String quietdownMessage = Messages.GoingToShutDown();
+    /** The configured quietdown message, null or blank to show the localized default message. */
+    private String quietdownMessage;
     private boolean allowAllQueuedItems;
+    private DrainOrder drainOrder = DrainOrder.PERMITTED_FIRST;
+    private List<QuietdownWindow> windows = new ArrayList<QuietdownWindow>();
+
+    /** The blockage shared by all blocked items, replaced as a whole when the quietdown message changes. */
+    private transient volatile SafeQuietdownBlockage blockage;
 
     /**
      * Constructor of the class SafeQuietdownConfiguration.
@@ -53,17 +66,40 @@ public class SafeQuietdownConfiguration extends GlobalConfiguration {
     public SafeQuietdownConfiguration() {
         // When Jenkins is restarted, load any saved configuration from disk.
         load();
+        if (isDefaultMessage(quietdownMessage)) {
+            // Older versions stored the default message in the locale of the server
+            quietdownMessage = null;
+        }
+        blockage = new SafeQuietdownBlockage(quietdownMessage);
     }
 
     /**
-     * Gets the quietdown message to be displayed in header.
+     * Gets the quietdown message to be displayed in header. If no message is
+     * configured, the default message is returned in the locale of the current
+     * request.
      *
      * @return message to display in header
      */
     public String getQuietdownMessage() {
+        if (StringUtils.isBlank(quietdownMessage)) {
+            return Messages.GoingToShutDown();
+        }
         return quietdownMessage;
     }
 
+    /**
+     * Checks if a message is the default message, either in the current
+     * locale or in the default bundle. Only the default bundle is shipped,
+     * so this covers every bundled locale.
+     *
+     * @param message the message
+     * @return true if the message is the default message
+     */
+    private static boolean isDefaultMessage(final String message) {
+        return Messages.GoingToShutDown().equals(message)
+            || Messages._GoingToShutDown().toString(Locale.ROOT).equals(message);
+    }
+
     /**
      * Checks if all queued items are allowed to finish when safe quietdown mode
      * is enabled.
@@ -75,13 +111,56 @@ public class SafeQuietdownConfiguration extends GlobalConfiguration {
     }
 
     /**
-     * Sets the quietdown message to be displayed in header.
+     * Gets the order in which the permitted items are dispatched.
+     *
+     * @return the drain order
+     */
+    public DrainOrder getDrainOrder() {
+        if (drainOrder == null) {
+            // Configurations saved by older versions don't contain the drain order
+            return DrainOrder.PERMITTED_FIRST;
+        }
+        return drainOrder;
+    }
+
+    /**
+     * Gets the scheduled quietdown windows.
+     *
+     * @return the scheduled windows
+     */
+    public List<QuietdownWindow> getWindows() {
+        if (windows == null) {
+            // Configurations saved by older versions don't contain any windows
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(windows);
+    }
+
+    /**
+     * Gets the blockage for all items prevented from running.
+     * The instance is immutable and shared, it is only replaced when the quietdown message changes.
+     *
+     * @return the blockage
+     */
+    public SafeQuietdownBlockage getBlockage() {
+        return blockage;
+    }
+
+    /**
+     * Sets the quietdown message to be displayed in header. The default
+     * message, e.g., submitted unchanged by the configuration form, is not
+     * stored, so it is still shown in the locale of each user.
      *
      * @param quietdownMessage message to display in header
      */
     @DataBoundSetter
     public void setQuietdownMessage(final String quietdownMessage) {
-        this.quietdownMessage = quietdownMessage;
+        if (isDefaultMessage(quietdownMessage)) {
+            this.quietdownMessage = null;
+        } else {
+            this.quietdownMessage = quietdownMessage;
+        }
+        this.blockage = new SafeQuietdownBlockage(this.quietdownMessage);
         save();
     }
 
@@ -96,6 +175,43 @@ public class SafeQuietdownConfiguration extends GlobalConfiguration {
         save();
     }
 
+    /**
+     * Sets the order in which the permitted items are dispatched.
+     *
+     * @param drainOrder the drain order
+     */
+    @DataBoundSetter
+    public void setDrainOrder(final DrainOrder drainOrder) {
+        this.drainOrder = drainOrder;
+        save();
+    }
+
+    /**
+     * Sets the scheduled quietdown windows.
+     *
+     * @param windows the scheduled windows
+     */
+    @DataBoundSetter
+    public void setWindows(final List<QuietdownWindow> windows) {
+        this.windows = new ArrayList<QuietdownWindow>(windows);
+        save();
+    }
+
+    /**
+     * Configures the plugin from the submitted form.
+     *
+     * @param req the request
+     * @param json the submitted form
+     * @return true to continue with the next configuration
+     * @throws FormException if the form is invalid
+     */
+    @Override
+    public boolean configure(final StaplerRequest req, final JSONObject json) throws FormException {
+        // The form does not contain the windows at all if all of them were deleted
+        windows = new ArrayList<QuietdownWindow>();
+        return super.configure(req, json);
+    }
+
     /**
      * Perform the form validation of the given value.
      * @param value the value to check.
@@ -26,6 +26,7 @@ package com.clemensrabe.jenkins.plugins.safequietdown;
 
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Util;
 import hudson.model.PageDecorator;
 import jenkins.model.Jenkins;
 
@@ -63,4 +64,31 @@ public class SafeQuietdownDecorator extends PageDecorator {
     public boolean isQuietdownActive() {
         return SafeQuietdownManagementLink.get().isQuietdownActive();
     }
+
+   /**
+     * Gets the estimated remaining time of the drain to be displayed in header.
+     * @return message to display in header or null if no estimate is available
+     */
+    public String getDrainEstimateMessage() {
+        if (!isQuietdownActive()) {
+            return null;
+        }
+        DrainEstimate estimate = DrainEstimator.get().getEstimate();
+        if (estimate.getRemainingMillis() <= 0) {
+            return null;
+        }
+        return Messages.EstimatedDrainTime(Util.getTimeSpanString(estimate.getRemainingMillis()));
+    }
+
+   /**
+     * Gets the nodes the safe quietdown is restricted to to be displayed in header.
+     * @return message to display in header or null if the whole controller is drained
+     */
+    public String getScopeMessage() {
+        String expression = SafeQuietdownManagementLink.get().getScopeExpression();
+        if (expression == null) {
+            return null;
+        }
+        return Messages.DrainedNodes(expression);
+    }
 }
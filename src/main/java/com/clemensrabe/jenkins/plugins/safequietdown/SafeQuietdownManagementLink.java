@@ -27,30 +27,40 @@
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
+import java.io.PrintWriter;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.collections.CollectionUtils;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.verb.GET;
 
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.model.Api;
+import hudson.model.Label;
 import hudson.model.ManagementLink;
+import hudson.model.Node;
+import hudson.model.Queue;
 import hudson.security.Permission;
 import jenkins.model.Jenkins;
-import jenkins.security.SecurityContextExecutorService;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
 
 /**
  * Adds a link on the manage Jenkins page for safe quietdown.
  */
 @Extension
+@ExportedBean
 public class SafeQuietdownManagementLink extends ManagementLink {
 
     private static final Logger LOGGER = Logger.getLogger(BuildPreventer.class.getName());
@@ -66,6 +76,15 @@ public class SafeQuietdownManagementLink extends ManagementLink {
     /** URL to this plugin to deactivate it. */
     private static final String URL_CANCEL = "cancelsafequietdown";
 
+    /** Maximum time between two progress checks in milliseconds. */
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * Delay of the drain check after a permitted build finished in milliseconds,
+     * so the executor of the finished build is released before the check.
+     */
+    private static final long DRAINED_CHECK_DELAY_MILLIS = 1000L;
+
     /** Icon used for the link. */
     private static final String ICON = "system-log-out.png";
 
@@ -73,10 +92,47 @@ public class SafeQuietdownManagementLink extends ManagementLink {
      * The list of queue ids, that belong to projects that where running at time of lenient shutdown
      * and any of the downstream builds.
      */
-    private Set<Long> permittedQueueIds = Collections.synchronizedSet(new HashSet<Long>());
+    private final ConcurrentLongHashSet permittedQueueIds = new ConcurrentLongHashSet();
 
-    /** Flag indicating whether we are currently in the quietdown mode. */
-    private boolean isQuietdownActive = false;
+    /**
+     * The permitted queue ids whose build is finished or whose queue item was cancelled.
+     * They are removed from the permitted queue ids once no queued item refers to them.
+     */
+    private final ConcurrentLongHashSet finishedQueueIds = new ConcurrentLongHashSet();
+
+    /**
+     * The queue ids whose build finished or whose queue item was cancelled while
+     * the safe quietdown mode is activating. They are not permitted yet, so they
+     * are marked as finished when the snapshot of the activation is merged.
+     */
+    private final ConcurrentLongHashSet finishedWhileActivating = new ConcurrentLongHashSet();
+
+    /** The current state of the quietdown mode. */
+    private final AtomicReference<SafeQuietdownState> state =
+        new AtomicReference<SafeQuietdownState>(SafeQuietdownState.INACTIVE);
+
+    /** Label expression of the nodes to drain or null to drain the whole controller. */
+    private volatile Label scope;
+
+    /**
+     * Generation of the dispatch decisions. Bumped whenever a blocked item
+     * might become permitted, i.e., when the state changes or a permitted
+     * queue id is added.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Counter of activations and deactivations to detect outdated activation tasks. */
+    private final AtomicLong activations = new AtomicLong();
+
+    /** Lock serializing toggling and the merge of the activation snapshot. */
+    private final Object activationLock = new Object();
+
+    /** Flag indicating whether a drain check is scheduled. */
+    private final AtomicBoolean drainedCheckPending = new AtomicBoolean();
+
+    /** Collects the permitted queue ids of an activation into a snapshot. */
+    private volatile Consumer<ConcurrentLongHashSet> snapshotCollector =
+        snapshot -> QueueIndex.get().collectPermittedQueueIds(snapshot, scope);
 
     /**
      * Gets the icon for this plugin.
@@ -140,15 +196,145 @@ public class SafeQuietdownManagementLink extends ManagementLink {
      * Checks if quietdown mode is activated.
      * @return true if Jenkins is in safe quietdown mode, otherwise false
      */
+    @Exported
     public boolean isQuietdownActive() {
-        return isQuietdownActive;
+        return state.get().isQuietdownActive();
+    }
+
+    /**
+     * Gets the current state of the quietdown mode.
+     * @return the current state
+     */
+    @Exported
+    public SafeQuietdownState getState() {
+        return state.get();
     }
 
     /**
-     * Toggle the safe quietdown state.
+     * Gets the nodes the quietdown is restricted to.
+     * @return the label expression of the nodes or null if the whole controller is drained
      */
-    public void toggleQuietdown() {
-        isQuietdownActive = !isQuietdownActive;
+    public Label getScope() {
+        return scope;
+    }
+
+    /**
+     * Gets the label expression of the nodes the quietdown is restricted to.
+     * @return the label expression or null if the whole controller is drained
+     */
+    @Exported
+    public String getScopeExpression() {
+        Label currentScope = scope;
+        if (currentScope == null) {
+            return null;
+        }
+        return currentScope.getExpression();
+    }
+
+    /**
+     * Checks if a node is drained by the quietdown.
+     * @param node the node
+     * @return true if the quietdown is not restricted or the node matches its label expression
+     */
+    public boolean isInScope(final Node node) {
+        Label currentScope = scope;
+        // Evaluated against the current labels of the node, so relabeling a node takes effect immediately
+        return (currentScope == null) || currentScope.matches(node);
+    }
+
+    /**
+     * Toggle the safe quietdown state. An inactive quietdown mode switches to
+     * {@link SafeQuietdownState#ACTIVATING}, any other state to
+     * {@link SafeQuietdownState#INACTIVE}.
+     * @return the new state
+     */
+    public SafeQuietdownState toggleQuietdown() {
+        while (true) {
+            SafeQuietdownState current = state.get();
+            SafeQuietdownState next = SafeQuietdownState.INACTIVE;
+            if (current == SafeQuietdownState.INACTIVE) {
+                next = SafeQuietdownState.ACTIVATING;
+            }
+            if (state.compareAndSet(current, next)) {
+                generation.incrementAndGet();
+                DrainStatus.setQuietdownActive(state.get().isQuietdownActive());
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Gets the generation of the dispatch decisions. A decision to block an
+     * item stays valid as long as the generation does not change.
+     * @return the generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Invalidates the cached dispatch decisions, e.g., after the queue index
+     * learned about builds it did not know when the decisions were made.
+     */
+    void invalidateDecisions() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of the activation. Does nothing if the quietdown mode was
+     * deactivated in the meantime.
+     * @return true if the state changed to {@link SafeQuietdownState#ACTIVE}
+     */
+    public boolean finishActivation() {
+        if (state.compareAndSet(SafeQuietdownState.ACTIVATING, SafeQuietdownState.ACTIVE)) {
+            generation.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks that all permitted builds are finished.
+     * @return true if the state changed to {@link SafeQuietdownState#DRAINED}
+     */
+    public boolean markDrained() {
+        return state.compareAndSet(SafeQuietdownState.ACTIVE, SafeQuietdownState.DRAINED);
+    }
+
+    /**
+     * Marks the quietdown as drained if all permitted builds are finished.
+     * Called by the owners of the state, i.e., after a permitted build
+     * finished and by the periodic {@link PermittedQueueIdSweeper}, so the
+     * state does not depend on anybody polling the drain status.
+     * @return true if the state changed to {@link SafeQuietdownState#DRAINED}
+     */
+    boolean updateDrained() {
+        if (getState() != SafeQuietdownState.ACTIVE) {
+            return false;
+        }
+        if (!DrainStatus.compute().isFinished()) {
+            return false;
+        }
+        if (markDrained()) {
+            scheduleSave();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Schedules {@link #updateDrained()} on the Jenkins timer, unless a check
+     * is already scheduled. Instances created outside of Jenkins, e.g., in
+     * unit tests, are not checked.
+     */
+    private void scheduleDrainedCheck() {
+        if ((Jenkins.getInstanceOrNull() != null) && drainedCheckPending.compareAndSet(false, true)) {
+            Timer.get().schedule(() -> {
+                // Reset before the check, so builds finishing during the check schedule another one
+                drainedCheckPending.set(false);
+                updateDrained();
+            }, DRAINED_CHECK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
    /**
@@ -167,37 +353,348 @@ public class SafeQuietdownManagementLink extends ManagementLink {
         rsp.sendRedirect2(req.getContextPath() + "/manage");
     }
 
+    /**
+     * Gets the remote API of the management link, e.g.,
+     * <code>/manage/cancelsafequietdown/api/json?depth=1</code>.
+     * @return the remote API
+     */
+    public Api getApi() {
+        Jenkins.get().checkPermission(getRequiredPermission());
+        return new Api(this);
+    }
+
+    /**
+     * Gets the current status of the drain. The status is computed freshly,
+     * as the remote API is queried explicitly, e.g., by shutdown scripts.
+     * @return the drain status
+     */
+    @Exported
+    public DrainStatus getDrainStatus() {
+        return DrainStatus.compute();
+    }
+
+    /**
+     * Gets the estimated completion of the drain.
+     * @return the drain estimate
+     */
+    @Exported
+    public DrainEstimate getDrainEstimate() {
+        return DrainEstimator.get().getEstimate();
+    }
+
+    /**
+     * Gets the current or last rolling drain.
+     * @return the rolling drain or null if none was started
+     */
+    @Exported
+    public RollingDrain getRollingDrain() {
+        return RollingDrainScheduler.get().getCurrent();
+    }
+
+    /**
+     * Streams the progress of the drain as newline delimited JSON. An event is
+     * written initially and whenever the state, the number of active builds,
+     * buildable items, blocked items or permitted queue ids changes. The stream
+     * ends when all permitted builds are finished, the timeout expires or the
+     * client disconnects.
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param timeout maximum time to stream in seconds, 0 streams until the drain is finished
+     * @throws IOException if unable to write the response
+     * @throws InterruptedException if interrupted while waiting for changes
+     */
+    @GET
+    public void doProgress(final StaplerRequest req, final StaplerResponse rsp,
+                           @QueryParameter final long timeout) throws IOException, InterruptedException {
+        Jenkins.get().checkPermission(getRequiredPermission());
+
+        long deadline = Long.MAX_VALUE;
+        if (timeout > 0) {
+            deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+        }
+
+        rsp.setContentType("application/x-ndjson;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        PrintWriter writer = rsp.getWriter();
+
+        String lastEvent = null;
+        long changeCounter = DrainStatus.getChangeCounter();
+        while (true) {
+            DrainStatus status = DrainStatus.get();
+            if (status.isFinished()) {
+                // The stream ends with a finished event, so it must not be based on an outdated status
+                status = DrainStatus.compute();
+            }
+            SafeQuietdownState currentState = getState();
+            boolean finished = status.isFinished() && (currentState != SafeQuietdownState.ACTIVATING);
+
+            JSONObject event = new JSONObject();
+            event.put("state", currentState.name());
+            event.put("activeBuilds", status.getNumberOfActiveBuilds());
+            event.put("buildableItems", status.getNumberOfBuildableItems());
+            event.put("blockedItems", status.getNumberOfBlockedItems());
+            event.put("permittedQueueIds", getNumberOfPermittedQueueIds());
+            event.put("finished", finished);
+            String eventText = event.toString();
+
+            // Only the numbers are compared, so the timestamp is added afterwards
+            if (!eventText.equals(lastEvent)) {
+                event.put("timestamp", status.getTimestamp());
+                event.put("estimatedCompletion", DrainEstimator.get().getEstimate().getEstimatedCompletion());
+                writer.println(event.toString());
+                writer.flush();
+                lastEvent = eventText;
+            }
+
+            long now = System.currentTimeMillis();
+            if (finished || (now >= deadline) || writer.checkError()) {
+                return;
+            }
+            changeCounter = DrainStatus.awaitChange(changeCounter,
+                                                    Math.min(PROGRESS_INTERVAL_MILLIS, deadline - now));
+        }
+    }
+
    /**
      * Toggles the flag and prepares for safe quietdown if needed.
      *
      */
     public void performToggleQuietdown() {
-        toggleQuietdown();
-        if (isQuietdownActive()) {
-            ExecutorService service = new SecurityContextExecutorService(Executors.newSingleThreadExecutor());
-            service.submit(new Runnable() {
-                @Override
-                public void run() {
-                    permittedQueueIds.clear();
-                    permittedQueueIds.addAll(QueueUtils.getPermittedQueueItemIds());
-                    permittedQueueIds.addAll(QueueUtils.getRunningQueueItemIds());
+        performToggleQuietdown(null);
+    }
+
+    /**
+     * Toggles the flag and prepares for safe quietdown if needed. When
+     * activating, the quietdown is restricted to the nodes matching the
+     * given label expression.
+     *
+     * @param newScope the nodes to drain or null to drain the whole controller
+     */
+    public void performToggleQuietdown(final Label newScope) {
+        synchronized (activationLock) {
+            if (!isQuietdownActive()) {
+                scope = newScope;
+            }
+            SafeQuietdownState newState = toggleQuietdown();
+            DrainStatus.invalidate();
+            permittedQueueIds.clear();
+            finishedQueueIds.clear();
+            finishedWhileActivating.clear();
+            if (newState == SafeQuietdownState.INACTIVE) {
+                scope = null;
+                // Discard the snapshot of a running activation
+                activations.incrementAndGet();
+            } else {
+                startActivation();
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Restores the state of a previous session, e.g., after a restart of
+     * Jenkins during the drain. A drained quietdown is restored as active,
+     * as the builds restored from disk are not checked yet. An interrupted
+     * activation is restored as activating and must be resumed by
+     * {@link #resumeActivation()} once the queue is loaded.
+     *
+     * @param restoredState the state of the previous session
+     * @param restoredScope the nodes to drain or null to drain the whole controller
+     * @param restoredPermittedQueueIds the permitted queue ids of the previous session
+     * @param restoredFinishedQueueIds the finished permitted queue ids of the previous session
+     */
+    void restore(final SafeQuietdownState restoredState, final Label restoredScope,
+                 final long[] restoredPermittedQueueIds, final long[] restoredFinishedQueueIds) {
+        if (!restoredState.isQuietdownActive()) {
+            return;
+        }
+        scope = restoredScope;
+        for (long id : restoredPermittedQueueIds) {
+            permittedQueueIds.add(id);
+        }
+        for (long id : restoredFinishedQueueIds) {
+            finishedQueueIds.add(id);
+        }
+        if (restoredState == SafeQuietdownState.ACTIVATING) {
+            state.set(SafeQuietdownState.ACTIVATING);
+        } else {
+            state.set(SafeQuietdownState.ACTIVE);
+        }
+        generation.incrementAndGet();
+        DrainStatus.setQuietdownActive(true);
+        DrainStatus.invalidate();
+    }
+
+    /**
+     * Resumes an activation restored by {@link #restore}. The permitted queue
+     * ids of the new snapshot are added to the restored ones.
+     */
+    void resumeActivation() {
+        synchronized (activationLock) {
+            if (getState() == SafeQuietdownState.ACTIVATING) {
+                startActivation();
+            }
+        }
+    }
+
+    /**
+     * Collects the permitted queue ids asynchronously and ends the activation
+     * window, even if collecting the permitted queue ids failed.
+     * The ids are collected into a snapshot that is merged by
+     * {@link #mergeActivation(long, ConcurrentLongHashSet)}.
+     */
+    private void startActivation() {
+        final long activation = activations.incrementAndGet();
+        ActivationExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activation != activations.get()) {
+                    return;
+                }
+                ConcurrentLongHashSet snapshot = collectSnapshot();
+                if (!mergeActivation(activation, snapshot)) {
+                    return;
+                }
+                if (LOGGER.isLoggable(Level.FINE)) {
                     LOGGER.log(Level.FINE, "Activated safe quiet mode. "
                                + "The following queue item ids are permitted to continue:");
-                    for (long id : permittedQueueIds) {
-                        LOGGER.log(Level.FINE, "  - {0}", id);
+                    snapshot.forEach(id -> LOGGER.log(Level.FINE, "  - {0}", id));
+                }
+                scheduleSave();
+                Queue.getInstance().scheduleMaintenance();
+            }
+        });
+    }
+
+    /**
+     * Collects the permitted queue ids of an activation. If collecting fails,
+     * only the running builds are permitted, or those on the drained nodes if
+     * the quietdown is restricted, so the activation still ends and the
+     * quietdown does not block every item forever.
+     * @return the snapshot of the permitted queue ids
+     */
+    private ConcurrentLongHashSet collectSnapshot() {
+        ConcurrentLongHashSet snapshot = new ConcurrentLongHashSet();
+        try {
+            snapshotCollector.accept(snapshot);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to collect the permitted queue ids of the safe quietdown activation, "
+                       + "permitting only the running builds.", e);
+            try {
+                Label currentScope = scope;
+                if (currentScope == null) {
+                    for (Long id : QueueUtils.getRunningQueueItemIds()) {
+                        snapshot.add(id);
                     }
+                } else {
+                    QueueUtils.forEachQueueIdOnNodes(currentScope, snapshot::add);
                 }
-            });
+            } catch (RuntimeException fallbackException) {
+                LOGGER.log(Level.SEVERE, "Failed to collect the running builds.", fallbackException);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Sets the collector of the permitted queue ids of an activation.
+     * @param collector the collector adding the permitted queue ids to the given snapshot
+     */
+    void setSnapshotCollector(final Consumer<ConcurrentLongHashSet> collector) {
+        this.snapshotCollector = collector;
+    }
+
+    /**
+     * Merges the snapshot of an activation into the permitted queue ids and
+     * ends the activation window. Only the latest activation may end the
+     * activation window, the snapshot of an activation that was cancelled or
+     * superseded in the meantime is discarded.
+     * @param activation the number of the activation the snapshot belongs to
+     * @param snapshot the permitted queue ids collected by the activation
+     * @return true if the snapshot was merged
+     */
+    boolean mergeActivation(final long activation, final ConcurrentLongHashSet snapshot) {
+        boolean finishedDuringActivation;
+        synchronized (activationLock) {
+            if ((activation != activations.get()) || (getState() != SafeQuietdownState.ACTIVATING)) {
+                return false;
+            }
+            permittedQueueIds.addAll(snapshot);
+            if (!finishActivation()) {
+                return false;
+            }
+            finishedDuringActivation = markFinishedWhileActivating();
+        }
+        if (finishedDuringActivation) {
+            prunePermittedQueueIds();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of the latest activation or deactivation.
+     * @return the number of the activation
+     */
+    long getActivation() {
+        return activations.get();
+    }
+
+    /**
+     * Marks the permitted queue ids as finished whose build finished or whose
+     * queue item was cancelled during the activation. Must be called after the
+     * activation ended: ids recorded later are marked by
+     * {@link #markFinishedQueueId(long)} itself.
+     * @return true if any permitted queue id was marked as finished
+     */
+    private boolean markFinishedWhileActivating() {
+        long[] ids = finishedWhileActivating.toArray();
+        finishedWhileActivating.clear();
+        boolean marked = false;
+        for (long id : ids) {
+            if (permittedQueueIds.contains(id) && finishedQueueIds.add(id)) {
+                marked = true;
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Schedules saving the state. Instances created outside of Jenkins, e.g.,
+     * in unit tests, are not persisted.
+     */
+    private void scheduleSave() {
+        if (Jenkins.getInstanceOrNull() != null) {
+            QuietdownStateStore.get().scheduleSave();
         }
     }
 
+    /**
+     * Gets a snapshot of the permitted queue ids.
+     * @return the permitted queue ids
+     */
+    long[] getPermittedQueueIds() {
+        return permittedQueueIds.toArray();
+    }
+
+    /**
+     * Gets a snapshot of the finished permitted queue ids.
+     * @return the finished queue ids
+     */
+    long[] getFinishedQueueIds() {
+        return finishedQueueIds.toArray();
+    }
+
     /**
      * Adds a queue id to the set of permitted upstream queue ids.
      *
      * @param id the queue id to add to white list
      */
     public void addPermittedQueueId(final long id) {
-        permittedQueueIds.add(id);
+        if (permittedQueueIds.add(id)) {
+            generation.incrementAndGet();
+            scheduleSave();
+        }
     }
 
    /**
@@ -217,7 +714,90 @@ public class SafeQuietdownManagementLink extends ManagementLink {
      * @return true if at least one of the projects is white listed
      */
     public boolean isAnyPermittedQueueId(final Set<Long> queueIds) {
-        Collection<?> intersection = CollectionUtils.intersection(queueIds, permittedQueueIds);
-        return !intersection.isEmpty();
+        for (long id : queueIds) {
+            if (permittedQueueIds.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of permitted queue ids.
+     *
+     * @return the number of permitted queue ids
+     */
+    @Exported
+    public int getNumberOfPermittedQueueIds() {
+        return permittedQueueIds.size();
+    }
+
+    /**
+     * Gets the number of permitted queue ids that are finished, but not
+     * pruned yet, as a queued item still refers to them as upstream or the
+     * next sweep did not run yet.
+     *
+     * @return the number of finished permitted queue ids
+     */
+    public int getNumberOfFinishedQueueIds() {
+        return finishedQueueIds.size();
+    }
+
+    /**
+     * Marks a permitted queue id as finished, i.e., its build is finished or
+     * its queue item was cancelled. Does nothing if the id is not permitted.
+     * While the safe quietdown mode is activating, the id is recorded and
+     * marked once the snapshot of the activation is merged.
+     *
+     * @param id the finished queue id
+     */
+    public void markFinishedQueueId(final long id) {
+        if (getState() == SafeQuietdownState.ACTIVATING) {
+            finishedWhileActivating.add(id);
+            // The merge takes the recorded ids after the activation ended, so
+            // only an id recorded after the merge is marked here
+            if (getState() == SafeQuietdownState.ACTIVATING) {
+                return;
+            }
+        }
+        if (isQuietdownActive() && permittedQueueIds.contains(id) && finishedQueueIds.add(id)) {
+            scheduleSave();
+            scheduleDrainedCheck();
+        }
+    }
+
+    /**
+     * Removes all finished queue ids from the permitted queue ids that are not
+     * referenced as upstream by a queued item that is not permitted yet.
+     *
+     * @return the number of removed queue ids
+     */
+    public int prunePermittedQueueIds() {
+        if (finishedQueueIds.isEmpty()) {
+            return 0;
+        }
+
+        final ConcurrentLongHashSet referencedQueueIds = new ConcurrentLongHashSet();
+        final QueueIndex queueIndex = QueueIndex.get();
+        for (Queue.Item item : Queue.getInstance().getItems()) {
+            if (!permittedQueueIds.contains(item.getId())) {
+                for (long id : queueIndex.getUpstreamQueueIds(item)) {
+                    referencedQueueIds.add(id);
+                }
+            }
+        }
+
+        int numberBefore = permittedQueueIds.size();
+        finishedQueueIds.forEach(id -> {
+            if (!referencedQueueIds.contains(id)) {
+                permittedQueueIds.remove(id);
+                finishedQueueIds.remove(id);
+            }
+        });
+        int numberRemoved = numberBefore - permittedQueueIds.size();
+        if (numberRemoved > 0) {
+            scheduleSave();
+        }
+        return numberRemoved;
     }
 }
@@ -0,0 +1,154 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Publishes the telemetry of the safe quietdown mode to the metrics plugin.
+ * Only loaded if the optional metrics plugin is installed. The counts are
+ * published as {@link Meter}s and the durations as {@link Timer}s, so they
+ * are exported, e.g., as counters and summaries to Prometheus.
+ */
+@Extension(optional = true)
+public class SafeQuietdownMetricProvider extends MetricProvider {
+
+    /** Prefix of all metric names. */
+    private static final String PREFIX = "jenkins.safequietdown";
+
+    /**
+     * Number of latest decisions the latency percentiles are computed of.
+     * The sliding window does not allocate on update, unlike the default
+     * exponentially decaying reservoir, as it is updated by the queue dispatcher.
+     */
+    private static final int LATENCY_SAMPLES = 1028;
+
+    /** The published metrics. */
+    private final MetricSet metricSet;
+
+    /**
+     * Constructor. Creates the metrics and registers them as recorder of the
+     * telemetry.
+     */
+    public SafeQuietdownMetricProvider() {
+        final MetricRecorder recorder = new MetricRecorder();
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put(MetricRegistry.name(PREFIX, "dispatcher", "invocations"), recorder.invocations);
+        for (DispatchDecision decision : DispatchDecision.values()) {
+            metrics.put(MetricRegistry.name(PREFIX, "decisions", decision.name().toLowerCase(Locale.ENGLISH)),
+                        recorder.decisions[decision.ordinal()]);
+        }
+        metrics.put(MetricRegistry.name(PREFIX, "decision", "latency"), recorder.decisionLatency);
+        metrics.put(MetricRegistry.name(PREFIX, "active"),
+                    (Gauge<Integer>) () -> SafeQuietdownManagementLink.get().isQuietdownActive() ? 1 : 0);
+        metrics.put(MetricRegistry.name(PREFIX, "permitted", "count"),
+                    (Gauge<Integer>) () -> SafeQuietdownManagementLink.get().getNumberOfPermittedQueueIds());
+        metrics.put(MetricRegistry.name(PREFIX, "permitted", "finished"),
+                    (Gauge<Integer>) () -> SafeQuietdownManagementLink.get().getNumberOfFinishedQueueIds());
+        metrics.put(MetricRegistry.name(PREFIX, "activation", "duration"), recorder.activationDuration);
+        metrics.put(MetricRegistry.name(PREFIX, "builds", "active"),
+                    (Gauge<Integer>) () -> DrainStatus.get().getNumberOfActiveBuilds());
+        metrics.put(MetricRegistry.name(PREFIX, "queue", "buildable"),
+                    (Gauge<Integer>) () -> DrainStatus.get().getNumberOfBuildableItems());
+        metrics.put(MetricRegistry.name(PREFIX, "queue", "blocked"),
+                    (Gauge<Integer>) () -> DrainStatus.get().getNumberOfBlockedItems());
+        metricSet = () -> metrics;
+        SafeQuietdownMetrics.setRecorder(recorder);
+    }
+
+    /**
+     * Gets the published metrics.
+     * @return the metrics
+     */
+    @NonNull
+    @Override
+    public MetricSet getMetricSet() {
+        return metricSet;
+    }
+
+    /**
+     * Records the telemetry into the published metrics.
+     */
+    private static final class MetricRecorder implements SafeQuietdownMetrics.Recorder {
+
+        /** Invocations of the queue dispatcher. */
+        private final Meter invocations = new Meter();
+
+        /** Decisions by reason, indexed by the ordinal of the decision. */
+        private final Meter[] decisions = new Meter[DispatchDecision.values().length];
+
+        /** Latency of the decisions. */
+        private final Timer decisionLatency = new Timer(new SlidingWindowReservoir(LATENCY_SAMPLES));
+
+        /** Duration of the activation tasks. */
+        private final Timer activationDuration = new Timer();
+
+        /**
+         * Constructor. Creates the meters of the decisions.
+         */
+        MetricRecorder() {
+            for (int i = 0; i < decisions.length; i++) {
+                decisions[i] = new Meter();
+            }
+        }
+
+        @Override
+        public void recordInvocation() {
+            invocations.mark();
+        }
+
+        @Override
+        public void recordNotActive() {
+            invocations.mark();
+            decisions[DispatchDecision.NOT_ACTIVE.ordinal()].mark();
+        }
+
+        @Override
+        public void recordDecision(final DispatchDecision decision, final long latencyNanos) {
+            decisions[decision.ordinal()].mark();
+            decisionLatency.update(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordActivation(final long durationNanos) {
+            activationDuration.update(durationNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+/**
+ * Telemetry of the safe quietdown mode. The values are recorded by the
+ * {@link SafeQuietdownMetricProvider} into meters and timers of the metrics
+ * plugin. If the optional metrics plugin is not installed, no recorder is
+ * registered and recording does nothing. Only the provider refers to classes
+ * of the metrics plugin, so the queue dispatcher can record unconditionally.
+ */
+public final class SafeQuietdownMetrics {
+
+    /** The recorder of the telemetry, null if the metrics plugin is not installed. */
+    private static volatile Recorder recorder;
+
+    /**
+     * Hiding utility class constructor.
+     */
+    private SafeQuietdownMetrics() { }
+
+    /**
+     * Sets the recorder of the telemetry.
+     * @param newRecorder the recorder or null to stop recording
+     */
+    static void setRecorder(final Recorder newRecorder) {
+        recorder = newRecorder;
+    }
+
+    /**
+     * Records an invocation of the queue dispatcher.
+     */
+    static void recordInvocation() {
+        Recorder current = recorder;
+        if (current != null) {
+            current.recordInvocation();
+        }
+    }
+
+    /**
+     * Records an invocation of the queue dispatcher while the safe quietdown
+     * mode is inactive. It is counted as invocation and as
+     * {@link DispatchDecision#NOT_ACTIVE} decision, but it is not timed.
+     */
+    static void recordNotActive() {
+        Recorder current = recorder;
+        if (current != null) {
+            current.recordNotActive();
+        }
+    }
+
+    /**
+     * Records a decision of the queue dispatcher.
+     * @param decision the decision
+     * @param latencyNanos the time it took to decide in nanoseconds
+     */
+    static void recordDecision(final DispatchDecision decision, final long latencyNanos) {
+        Recorder current = recorder;
+        if (current != null) {
+            current.recordDecision(decision, latencyNanos);
+        }
+    }
+
+    /**
+     * Records the run of an activation task.
+     * @param durationNanos the time the task took to run in nanoseconds
+     */
+    static void recordActivation(final long durationNanos) {
+        Recorder current = recorder;
+        if (current != null) {
+            current.recordActivation(durationNanos);
+        }
+    }
+
+    /**
+     * Receives the recorded telemetry.
+     */
+    interface Recorder {
+
+        /**
+         * Records an invocation of the queue dispatcher while the safe
+         * quietdown mode is active.
+         */
+        void recordInvocation();
+
+        /**
+         * Records an invocation of the queue dispatcher while the safe
+         * quietdown mode is inactive.
+         */
+        void recordNotActive();
+
+        /**
+         * Records a decision of the queue dispatcher.
+         * @param decision the decision
+         * @param latencyNanos the time it took to decide in nanoseconds
+         */
+        void recordDecision(DispatchDecision decision, long latencyNanos);
+
+        /**
+         * Records the run of an activation task.
+         * @param durationNanos the time the task took to run in nanoseconds
+         */
+        void recordActivation(long durationNanos);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Queue;
+import hudson.model.queue.QueueSorter;
+
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+/**
+ * Queue sorter that moves the permitted queue items and the pipeline steps to
+ * the front of the buildable items while the safe quietdown mode is active.
+ * So the permitted downstream builds get the free executors first and the
+ * blocked items are dispatched last. Depending on the configured
+ * {@link DrainOrder}, the permitted items are ranked by the projected
+ * duration of their chain of downstream builds. The sorter runs while holding
+ * the queue lock, so it only reads the estimated durations cached by the
+ * {@link DrainEstimator}, items without a cached estimate are ranked last.
+ * <p>
+ * Jenkins uses only a single queue sorter. This sorter therefore wraps the
+ * installed sorter, e.g., the one of the priority sorter plugin, and keeps
+ * its order within the permitted and the blocked items.
+ */
+public final class SafeQuietdownQueueSorter extends QueueSorter {
+
+    private static final Logger LOGGER = Logger.getLogger(SafeQuietdownQueueSorter.class.getName());
+
+    /** The foreign queue sorter reported last, so a replacement is only logged once. */
+    private static volatile QueueSorter reportedSorter;
+
+    /** The wrapped queue sorter or null if there is none. */
+    private final QueueSorter delegate;
+
+    /**
+     * Constructor.
+     * @param delegate the wrapped queue sorter or null
+     */
+    public SafeQuietdownQueueSorter(final QueueSorter delegate) {
+        super();
+        this.delegate = delegate;
+    }
+
+    /**
+     * Gets the wrapped queue sorter.
+     * @return the wrapped queue sorter or null if there is none
+     */
+    public QueueSorter getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Installs the sorter after all plugins had the chance to install their own sorter.
+     */
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void install() {
+        Queue queue = Queue.getInstance();
+        QueueSorter sorter = queue.getSorter();
+        if (!(sorter instanceof SafeQuietdownQueueSorter)) {
+            queue.setSorter(new SafeQuietdownQueueSorter(sorter));
+            LOGGER.log(Level.FINE, "Installed safe quietdown queue sorter wrapping {0}", sorter);
+        }
+    }
+
+    /**
+     * Checks if this sorter is still installed. Another plugin may replace it
+     * later, e.g., when its configuration is saved. Then the permitted items
+     * are no longer moved to the front and the drain order has no effect, so
+     * a warning is logged once per replacing sorter.
+     * @return true if this sorter is installed
+     */
+    static boolean checkInstalled() {
+        QueueSorter sorter = Queue.getInstance().getSorter();
+        if (sorter instanceof SafeQuietdownQueueSorter) {
+            return true;
+        }
+        if (sorter != reportedSorter) {
+            reportedSorter = sorter;
+            LOGGER.log(Level.WARNING, "The safe quietdown queue sorter was replaced by {0}. The permitted items "
+                       + "are not dispatched first and the drain order has no effect until Jenkins is restarted.",
+                       sorter);
+        }
+        return false;
+    }
+
+    /**
+     * Sorts the buildable items with the wrapped sorter and moves the
+     * permitted items to the front if the safe quietdown mode is active.
+     * @param buildables the buildable items to sort
+     */
+    @Override
+    public void sortBuildableItems(final List<Queue.BuildableItem> buildables) {
+        if (delegate != null) {
+            delegate.sortBuildableItems(buildables);
+        }
+
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        SafeQuietdownState state = link.getState();
+        if ((state == SafeQuietdownState.ACTIVE) || (state == SafeQuietdownState.DRAINED)) {
+            int numberOfPermitted = prioritizePermittedItems(buildables, link);
+            DrainOrder drainOrder = SafeQuietdownConfiguration.get().getDrainOrder();
+            if (drainOrder != DrainOrder.PERMITTED_FIRST) {
+                // Only the cached estimates are read, as the queue lock is held
+                final DrainEstimator estimator = DrainEstimator.get();
+                final Map<String, Long> memo = new HashMap<String, Long>();
+                drainOrder.sort(buildables.subList(0, numberOfPermitted),
+                                item -> estimator.getChainMillis(item, memo));
+            }
+        }
+    }
+
+    /**
+     * Sorts the blocked items with the wrapped sorter.
+     * @param blockedItems the blocked items to sort
+     */
+    @Override
+    public void sortBlockedItems(final List<Queue.BlockedItem> blockedItems) {
+        if (delegate != null) {
+            delegate.sortBlockedItems(blockedItems);
+        } else {
+            super.sortBlockedItems(blockedItems);
+        }
+    }
+
+    /**
+     * Moves the permitted items and pipeline steps to the front of the list.
+     * The partition is stable, so the order within both groups is kept.
+     * @param buildables the buildable items
+     * @param link the management link holding the permitted queue ids
+     * @return the number of permitted items
+     */
+    static int prioritizePermittedItems(final List<Queue.BuildableItem> buildables,
+                                         final SafeQuietdownManagementLink link) {
+        List<Queue.BuildableItem> blocked = new ArrayList<Queue.BuildableItem>();
+        int numberOfPermitted = 0;
+        for (int i = 0; i < buildables.size(); i++) {
+            Queue.BuildableItem item = buildables.get(i);
+            if (isPermitted(item, link)) {
+                buildables.set(numberOfPermitted++, item);
+            } else {
+                blocked.add(item);
+            }
+        }
+        for (int i = 0; i < blocked.size(); i++) {
+            buildables.set(numberOfPermitted + i, blocked.get(i));
+        }
+        return numberOfPermitted;
+    }
+
+    /**
+     * Checks if a queue item is permitted or a pipeline step.
+     * @param item the queue item
+     * @param link the management link holding the permitted queue ids
+     * @return true if the item should be dispatched first
+     */
+    private static boolean isPermitted(final Queue.Item item, final SafeQuietdownManagementLink link) {
+        return link.isPermittedQueueId(item.getId())
+            || ((item.task.getOwnerTask() != item.task) && (item.task.getOwnerTask() instanceof WorkflowJob));
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+/**
+ * The states of the safe quietdown mode.
+ * The mode is active in all states except {@link #INACTIVE}.
+ */
+public enum SafeQuietdownState {
+
+    /** The safe quietdown mode is not active. */
+    INACTIVE,
+
+    /** The safe quietdown mode was activated and the permitted queue ids are collected. */
+    ACTIVATING,
+
+    /** The safe quietdown mode is active and permitted builds are allowed to finish. */
+    ACTIVE,
+
+    /** The safe quietdown mode is active and all permitted builds are finished. */
+    DRAINED;
+
+    /**
+     * Checks if the safe quietdown mode is active in this state.
+     * @return true if the safe quietdown mode is active
+     */
+    public boolean isQuietdownActive() {
+        return this != INACTIVE;
+    }
+}
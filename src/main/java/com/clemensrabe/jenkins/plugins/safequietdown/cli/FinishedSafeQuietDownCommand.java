@@ -24,13 +24,20 @@
 
 package com.clemensrabe.jenkins.plugins.safequietdown.cli;
 
+import java.time.Instant;
+
+import com.clemensrabe.jenkins.plugins.safequietdown.ActivationExecutor;
+import com.clemensrabe.jenkins.plugins.safequietdown.DrainEstimate;
+import com.clemensrabe.jenkins.plugins.safequietdown.DrainEstimator;
+import com.clemensrabe.jenkins.plugins.safequietdown.DrainStatus;
 import com.clemensrabe.jenkins.plugins.safequietdown.Messages;
-import com.clemensrabe.jenkins.plugins.safequietdown.QueueUtils;
 import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownManagementLink;
+import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownState;
 
 import org.kohsuke.args4j.Option;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.cli.CLICommand;
 import jenkins.model.Jenkins;
 
@@ -73,9 +80,14 @@ public class FinishedSafeQuietDownCommand extends CLICommand {
         SafeQuietdownManagementLink management = SafeQuietdownManagementLink.get();
         Jenkins.get().checkPermission(management.getRequiredPermission());
 
-        int numActiveBuilds = QueueUtils.getNumberOfActiveBuilds();
-        int numBuildableItems = QueueUtils.getNumberOfBuildableQueueItems();
-        boolean allFinished = ((numActiveBuilds + numBuildableItems) == 0);
+        // An explicit query must not answer from a cached status that misses the latest changes
+        DrainStatus status = DrainStatus.compute();
+        int numActiveBuilds = status.getNumberOfActiveBuilds();
+        int numBuildableItems = status.getNumberOfBuildableItems();
+        // While activating, the permitted builds are not known yet
+        SafeQuietdownState state = management.getState();
+        boolean allFinished = status.isFinished()
+            && (state != SafeQuietdownState.ACTIVATING);
 
         if (verboseOption) {
             if (management.isQuietdownActive()) {
@@ -83,11 +95,36 @@ public class FinishedSafeQuietDownCommand extends CLICommand {
             } else {
                 stderr.println(Messages.SafeQuietdownDeactivated());
             }
+            stdout.format("Safe quietdown state:            %s", management.getState());
+            stdout.println();
+            if (management.getScopeExpression() != null) {
+                stdout.format("Drained nodes:                   %s", management.getScopeExpression());
+                stdout.println();
+            }
             stdout.format("Number of active builds:         %d", numActiveBuilds);
             stdout.println();
             stdout.format("Number of buildable queue items: %d", numBuildableItems);
             stdout.println();
 
+            stdout.format("Number of permitted queue ids:   %d", management.getNumberOfPermittedQueueIds());
+            stdout.println();
+            stdout.format("Activation tasks waiting:        %d", ActivationExecutor.getQueueDepth());
+            stdout.println();
+            stdout.format("Last activation latency:         %d ms", ActivationExecutor.getLastQueueLatencyMillis());
+            stdout.println();
+            stdout.format("Last activation duration:        %d ms", ActivationExecutor.getLastDurationMillis());
+            stdout.println();
+
+            DrainEstimate estimate = DrainEstimator.get().getEstimate();
+            stdout.format("Estimated remaining drain time:  %s",
+                          Util.getTimeSpanString(estimate.getRemainingMillis()));
+            stdout.println();
+            stdout.format("Estimated drain completion:      %s",
+                          Instant.ofEpochMilli(estimate.getEstimatedCompletion()));
+            stdout.println();
+            stdout.format("Builds without estimate:         %d", estimate.getNumberOfUnknownEstimates());
+            stdout.println();
+
             if (allFinished) {
                 stdout.println("All (allowed) builds seems to be finished.");
             } else {
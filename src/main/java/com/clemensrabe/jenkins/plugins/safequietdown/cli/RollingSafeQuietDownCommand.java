@@ -0,0 +1,115 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown.cli;
+
+import com.clemensrabe.jenkins.plugins.safequietdown.Messages;
+import com.clemensrabe.jenkins.plugins.safequietdown.RollingDrain;
+import com.clemensrabe.jenkins.plugins.safequietdown.RollingDrainScheduler;
+import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownManagementLink;
+
+import org.kohsuke.args4j.Option;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.cli.CLICommand;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+
+/**
+ * Cli command <code>rolling-safe-quiet-down</code>.
+ */
+@Extension
+public class RollingSafeQuietDownCommand extends CLICommand {
+
+    /**
+     * Drain only the agents matching a label expression.
+     */
+    @Option(name = "-l", aliases = { "--label" }, usage = "Drain only the agents matching the label expression.",
+            required = false)
+    private String labelExpression;
+
+    /**
+     * Maximum number of agents per wave.
+     */
+    @Option(name = "-n", aliases = { "--nodes" }, usage = "Maximum number of agents per wave (default: 1).",
+            required = false)
+    private int nodesPerWave = 1;
+
+    /**
+     * Maximum percentage of agents per wave.
+     */
+    @Option(name = "-p", aliases = { "--percent" }, usage = "Maximum percentage of the agents per wave. "
+            + "Overrides the number of agents per wave.", required = false)
+    private int percentPerWave;
+
+    /**
+     * Minimum number of free executors.
+     */
+    @Option(name = "-e", aliases = { "--min-executors" }, usage = "Minimum number of idle executors that stay "
+            + "free on the online nodes outside of the wave (default: 0).", required = false)
+    private int minExecutors;
+
+    /**
+     * Take the drained agents offline.
+     */
+    @Option(name = "-o", aliases = { "--offline" }, usage = "Take the drained agents offline.",
+            required = false)
+    private boolean takeOffline;
+
+    /**
+     * Get the short description of this command used for the <code>help</code>
+     * listing.
+     * @return description of this command.
+     */
+    @Override
+    public String getShortDescription() {
+        return Messages.RollingSafeQuietDownTitle();
+    }
+
+    /**
+     * Executes the command.
+     * @return return code of this command.
+     */
+    @Override
+    protected int run() {
+        Jenkins.get().checkPermission(SafeQuietdownManagementLink.get().getRequiredPermission());
+
+        Label nodes = null;
+        if (Util.fixEmpty(labelExpression) != null) {
+            // Throws an IllegalArgumentException reported by the CLI if the expression is invalid
+            nodes = Label.parseExpression(labelExpression);
+        }
+
+        try {
+            RollingDrain drain = RollingDrainScheduler.get().start(nodes, nodesPerWave, percentPerWave,
+                                                                   minExecutors, takeOffline);
+            stdout.println(Messages.RollingDrainStarted(drain.getPendingNodes().size(), drain.getWaveSize()));
+        } catch (IllegalStateException e) {
+            stderr.println(e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -33,6 +33,7 @@ import org.kohsuke.args4j.Option;
 import hudson.Extension;
 import hudson.Util;
 import hudson.cli.CLICommand;
+import hudson.model.Label;
 import jenkins.model.Jenkins;
 
 /**
@@ -55,6 +56,13 @@ public class SafeQuietDownCommand extends CLICommand {
             required = false)
     private boolean allowAllQueuedItemsOption;
 
+    /**
+     * Restrict the quietdown to the nodes matching a label expression.
+     */
+    @Option(name = "-l", aliases = { "--label" }, usage = "Drain only the nodes matching the label expression.",
+            required = false)
+    private String labelExpression;
+
    /**
      * Get the short description of this command used for the <code>help</code>
      * listing.
@@ -75,8 +83,13 @@ public class SafeQuietDownCommand extends CLICommand {
         Jenkins.get().checkPermission(management.getRequiredPermission());
 
         if (!management.isQuietdownActive()) {
+            Label scope = null;
+            if (Util.fixEmpty(labelExpression) != null) {
+                // Throws an IllegalArgumentException reported by the CLI if the expression is invalid
+                scope = Label.parseExpression(labelExpression);
+            }
             configure();
-            management.performToggleQuietdown();
+            management.performToggleQuietdown(scope);
             stdout.println(Messages.SafeQuietdownActivated());
         } else {
             stderr.println(Messages.Err_QuietdownAlreadyActive());
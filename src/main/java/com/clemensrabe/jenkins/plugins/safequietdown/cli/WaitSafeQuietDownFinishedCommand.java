@@ -0,0 +1,171 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown.cli;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clemensrabe.jenkins.plugins.safequietdown.DrainStatus;
+import com.clemensrabe.jenkins.plugins.safequietdown.Messages;
+import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownManagementLink;
+import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownState;
+
+import org.kohsuke.args4j.Option;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+
+/**
+ * Cli command <code>wait-safe-quiet-down-finished</code>.
+ * Blocks until all permitted builds are finished. The status is observed
+ * whenever the queue or the running builds change, but at least once per second.
+ * Only a new status that does not miss any change counts as an observation,
+ * as a cached status is returned until it expires.
+ */
+@Extension
+public class WaitSafeQuietDownFinishedCommand extends CLICommand {
+
+    /** Return code when all jobs are finished. */
+    private static final int RETURN_CODE_ALL_FINISHED = 0;
+
+    /** Return code when the timeout expired. */
+    private static final int RETURN_CODE_TIMEOUT = 1;
+
+    /** Default number of consecutive observations. */
+    private static final int DEFAULT_OBSERVATIONS = 3;
+
+    /** Maximum time between two observations in milliseconds. */
+    private static final long OBSERVATION_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * Maximum time to wait in seconds.
+     */
+    @Option(name = "-t", aliases = { "--timeout" }, metaVar = "SECONDS",
+            usage = "Maximum time to wait in seconds. 0 waits forever.", required = false)
+    private long timeoutSeconds;
+
+    /**
+     * Number of consecutive observations without active builds and buildable items.
+     */
+    @Option(name = "-n", aliases = { "--observations" }, metaVar = "N",
+            usage = "Number of consecutive observations that must show no active builds and no buildable items.",
+            required = false)
+    private int requiredObservations = DEFAULT_OBSERVATIONS;
+
+    /**
+     * Minimum time in seconds the drain must stay finished.
+     */
+    @Option(name = "-w", aliases = { "--window" }, metaVar = "SECONDS",
+            usage = "Minimum time in seconds without active builds and buildable items.", required = false)
+    private long windowSeconds;
+
+    /**
+     * Suppress the progress output.
+     */
+    @Option(name = "-q", aliases = { "--quiet" }, usage = "Do not print the progress.", required = false)
+    private boolean quietOption;
+
+    /**
+     * Get the short description of this command used for the <code>help</code>
+     * listing.
+     * @return description of this command.
+     */
+    @Override
+    public String getShortDescription() {
+        return Messages.WaitSafeQuietDownFinishedTitle();
+    }
+
+    /**
+     * Executes the command.
+     * @return return code of this command.
+     * @throws Exception on errors.
+     */
+    @Override
+    protected int run() throws Exception {
+        SafeQuietdownManagementLink management = SafeQuietdownManagementLink.get();
+        Jenkins.get().checkPermission(management.getRequiredPermission());
+
+        long deadline = Long.MAX_VALUE;
+        if (timeoutSeconds > 0) {
+            deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        }
+        long windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+
+        long changeCounter = DrainStatus.getChangeCounter();
+        DrainStatus reportedStatus = null;
+        DrainStatus observedStatus = null;
+        int finishedObservations = 0;
+        long finishedSince = 0;
+
+        while (true) {
+            DrainStatus status = DrainStatus.get();
+            long now = System.currentTimeMillis();
+
+            if (!quietOption && hasChanged(reportedStatus, status)) {
+                stdout.format("Active builds: %d, buildable queue items: %d",
+                              status.getNumberOfActiveBuilds(), status.getNumberOfBuildableItems());
+                stdout.println();
+                stdout.flush();
+                reportedStatus = status;
+            }
+
+            if ((status != observedStatus) && !status.isOutdated()) {
+                observedStatus = status;
+                // While activating, the permitted builds are not known yet
+                if (status.isFinished() && (management.getState() != SafeQuietdownState.ACTIVATING)) {
+                    if (finishedObservations == 0) {
+                        finishedSince = now;
+                    }
+                    finishedObservations++;
+                    if ((finishedObservations >= requiredObservations) && (now - finishedSince >= windowMillis)) {
+                        stdout.println(Messages.AllPermittedBuildsFinished());
+                        return RETURN_CODE_ALL_FINISHED;
+                    }
+                } else {
+                    finishedObservations = 0;
+                }
+            }
+
+            if (now >= deadline) {
+                stderr.println(Messages.Err_WaitTimedOut());
+                return RETURN_CODE_TIMEOUT;
+            }
+            changeCounter = DrainStatus.awaitChange(changeCounter,
+                                                    Math.min(OBSERVATION_INTERVAL_MILLIS, deadline - now));
+        }
+    }
+
+    /**
+     * Checks if the numbers of the status changed since the last report.
+     * @param reportedStatus the last reported status or null
+     * @param status the current status
+     * @return true if the status should be reported
+     */
+    private static boolean hasChanged(final DrainStatus reportedStatus, final DrainStatus status) {
+        return (reportedStatus == null)
+            || (reportedStatus.getNumberOfActiveBuilds() != status.getNumberOfActiveBuilds())
+            || (reportedStatus.getNumberOfBuildableItems() != status.getNumberOfBuildableItems());
+    }
+}
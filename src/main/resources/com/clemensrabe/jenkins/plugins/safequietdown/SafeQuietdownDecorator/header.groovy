@@ -32,8 +32,22 @@ style(type: "text/css", '''
         text-align: center;
         padding: 0.5em;
     }
+    .safe-quietdown-detail {
+        font-weight: normal;
+        font-size: smaller;
+    }
 ''')
 
 if(it.quietdownActive) {
-    div(id: "safe-quietdown-msg", it.quietdownMessage)
+    div(id: "safe-quietdown-msg") {
+        text(it.quietdownMessage)
+        def scope = it.scopeMessage
+        if(scope != null) {
+            div(class: "safe-quietdown-detail", scope)
+        }
+        def drainEstimate = it.drainEstimateMessage
+        if(drainEstimate != null) {
+            div(id: "safe-quietdown-estimate", class: "safe-quietdown-detail", drainEstimate)
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown.cli;
+
+import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownManagementLink
+import com.clemensrabe.jenkins.plugins.safequietdown.SafeQuietdownState
+import hudson.model.Queue
+import java.util.concurrent.TimeUnit
+import org.junit.Test
+import org.jvnet.hudson.test.SleepBuilder
+
+/**
+ * Tests for {@link WaitSafeQuietDownFinishedCommand}.
+ */
+class WaitSafeQuietDownFinishedCommandTest extends CliTestBase {
+
+    /**
+     * Tests that the command returns immediately if nothing is running.
+     */
+    @Test
+    void testNothingRunning() {
+        assert cmd("wait-safe-quiet-down-finished", "-t", "30").execute().waitFor() == 0 : "Command exited wrongly"
+    }
+
+    /**
+     * Tests that the command waits for a running build.
+     */
+    @Test
+    void testWaitForRunningBuild() {
+        def project = jenkins.createFreeStyleProject()
+        project.buildersList.add(new SleepBuilder(5000))
+        def buildFuture = project.scheduleBuild2(0)
+        buildFuture.waitForStart()
+
+        SafeQuietdownManagementLink.get().performToggleQuietdown()
+        assert cmd("wait-safe-quiet-down-finished", "-t", "1").execute().waitFor() == 1 : "Command did not time out"
+        assert cmd("wait-safe-quiet-down-finished", "-t", "60").execute().waitFor() == 0 : "Command exited wrongly"
+        assert !buildFuture.get().isBuilding() : "Build still running"
+    }
+
+    /**
+     * Tests that several events within the lifetime of a cached status don't
+     * count the same status as several observations, so permitted work
+     * queued between two observations is waited for.
+     */
+    @Test
+    void testWorkQueuedBetweenObservations() {
+        def link = SafeQuietdownManagementLink.get()
+        link.performToggleQuietdown()
+        while (link.getState() == SafeQuietdownState.ACTIVATING) {
+            TimeUnit.MILLISECONDS.sleep(100)
+        }
+
+        def process = cmd("wait-safe-quiet-down-finished", "-n", "3", "-t", "60").execute()
+        def output = new BufferedReader(new InputStreamReader(process.inputStream))
+        assert output.readLine() == "Active builds: 0, buildable queue items: 0" : "First observation missing"
+
+        // Every queued build wakes up the command, while the cached status still shows a finished drain
+        def futures = (1..3).collect {
+            def project = jenkins.createFreeStyleProject()
+            project.buildersList.add(new SleepBuilder(2000))
+            def future = project.scheduleBuild2(1)
+            link.addPermittedQueueId(Queue.getInstance().getItem(project).getId())
+            future
+        }
+        assert !process.waitFor(2, TimeUnit.SECONDS) : "Command exited while permitted builds are queued"
+
+        futures.each { it.get() }
+        assert process.waitFor(60, TimeUnit.SECONDS) : "Command did not exit"
+        assert process.exitValue() == 0 : "Command exited wrongly"
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.ExtensionList;
+import hudson.model.Cause;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the blocked path of {@link BuildPreventer#canRun(Queue.Item)}
+ * with disabled diagnostic logging. The item is remembered as blocked after
+ * the first call, so the later calls of {@link #canRunBlocked} skip the
+ * upstream resolution. {@link #decideBlockedUncached} measures the first,
+ * uncached decision of a queued job instead. Together with the GC profiler
+ * of the {@link BenchmarkRunner}, the normalized allocation rate reports the
+ * bytes allocated per call, which is zero for both paths. The uncached path
+ * is also asserted to be allocation-free by {@link BuildPreventerTest}.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = BuildPreventerBlockedBenchmark.WARMUP_ITERATIONS)
+@Measurement(iterations = BuildPreventerBlockedBenchmark.MEASUREMENT_ITERATIONS)
+public class BuildPreventerBlockedBenchmark {
+
+    /** Number of warmup iterations. */
+    static final int WARMUP_ITERATIONS = 3;
+
+    /** Number of measurement iterations. */
+    static final int MEASUREMENT_ITERATIONS = 5;
+
+    /**
+     * Jenkins with an active safe quietdown and a queue item that is not permitted.
+     */
+    public static class BlockedItemState extends JmhBenchmarkState {
+
+        /** The dispatcher under test. */
+        private BuildPreventer buildPreventer;
+
+        /** The management link holding the permitted queue ids. */
+        private SafeQuietdownManagementLink managementLink;
+
+        /** The queue item that is blocked. */
+        private Queue.Item item;
+
+        /**
+         * Prepares the blocked item and activates the safe quietdown.
+         * @throws Exception if something goes wrong
+         */
+        @Override
+        public void setup() throws Exception {
+            Logger.getLogger(BuildPreventer.class.getName()).setLevel(Level.INFO);
+
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "blocked");
+            item = QueueFixtures.newWaitingItem(project, new Cause.UserIdCause());
+            buildPreventer = ExtensionList.lookupSingleton(BuildPreventer.class);
+            managementLink = QueueFixtures.activateQuietdown();
+
+            // The item is indexed like a job entering the queue while the quietdown is active
+            QueueIndex.get().itemEntered(item, true);
+        }
+    }
+
+    /**
+     * Calls the dispatcher for the blocked item.
+     * @param state the benchmark state
+     * @return the blockage
+     */
+    @Benchmark
+    public CauseOfBlockage canRunBlocked(final BlockedItemState state) {
+        return state.buildPreventer.canRun(state.item);
+    }
+
+    /**
+     * Decides on the blocked item without the remembered blocked items, as
+     * on the first call of the dispatcher for the item.
+     * @param state the benchmark state
+     * @return the decision
+     */
+    @Benchmark
+    public DispatchDecision decideBlockedUncached(final BlockedItemState state) {
+        return state.buildPreventer.decideUncached(state.item, state.managementLink);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.ExtensionList;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+
+/**
+ * Test class for the decisions of the queue dispatcher.
+ */
+public class BuildPreventerTest extends SafeQuietdownTestBase {
+
+    /** Number of dispatcher calls for the allocation measurement. */
+    private static final int ALLOCATION_CALLS = 100000;
+
+    /** Quiet period of the queued owner in seconds, long enough to keep it queued during the test. */
+    private static final int OWNER_QUIET_PERIOD = 60;
+
+    /**
+     * Jenkins rule instance.
+     */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    /**
+     * Test that a remembered blocked item is permitted once its upstream
+     * build becomes permitted.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testBlockedDecisionIsInvalidatedByNewPermittedQueueId() throws Exception {
+        FreeStyleProject upstream = jenkinsRule.createFreeStyleProject("upstream");
+        FreeStyleProject downstream = jenkinsRule.createFreeStyleProject("downstream");
+        FreeStyleBuild upstreamBuild = jenkinsRule.buildAndAssertSuccess(upstream);
+        Queue.Item item = QueueFixtures.newWaitingItem(downstream, new Cause.UpstreamCause(upstreamBuild));
+
+        SafeQuietdownManagementLink link = QueueFixtures.activateQuietdown();
+        BuildPreventer buildPreventer = ExtensionList.lookupSingleton(BuildPreventer.class);
+
+        assertEquals(DispatchDecision.BLOCKED, buildPreventer.decide(item));
+        assertEquals(DispatchDecision.BLOCKED, buildPreventer.decide(item));
+
+        long generation = link.getGeneration();
+        link.addPermittedQueueId(upstreamBuild.getQueueId());
+        assertNotEquals(generation, link.getGeneration());
+        assertEquals(DispatchDecision.DOWNSTREAM, buildPreventer.decide(item));
+        assertEquals(DispatchDecision.PERMITTED, buildPreventer.decide(item));
+    }
+
+    /**
+     * Test that a remembered blocked item is not blocked after the safe
+     * quietdown was deactivated.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testBlockedDecisionIsInvalidatedByDeactivation() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        Queue.Item item = QueueFixtures.newWaitingItem(project, new Cause.UserIdCause());
+
+        SafeQuietdownManagementLink link = QueueFixtures.activateQuietdown();
+        BuildPreventer buildPreventer = ExtensionList.lookupSingleton(BuildPreventer.class);
+        assertEquals(DispatchDecision.BLOCKED, buildPreventer.decide(item));
+
+        link.toggleQuietdown();
+        assertEquals(DispatchDecision.NOT_ACTIVE, buildPreventer.decide(item));
+        QueueFixtures.activateQuietdown();
+        assertEquals(DispatchDecision.BLOCKED, buildPreventer.decide(item));
+    }
+
+    /**
+     * Test that the first, uncached decision on a blocked queued job does not
+     * allocate once its upstream builds are resolved by the queue index.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testUncachedBlockedDecisionDoesNotAllocate() throws Exception {
+        FreeStyleProject upstream = jenkinsRule.createFreeStyleProject("upstream");
+        FreeStyleProject downstream = jenkinsRule.createFreeStyleProject("downstream");
+        FreeStyleBuild upstreamBuild = jenkinsRule.buildAndAssertSuccess(upstream);
+        Queue.Item item = QueueFixtures.newWaitingItem(downstream, new Cause.UpstreamCause(upstreamBuild));
+
+        SafeQuietdownManagementLink link = QueueFixtures.activateQuietdown();
+        QueueIndex.get().itemEntered(item, true);
+        BuildPreventer buildPreventer = ExtensionList.lookupSingleton(BuildPreventer.class);
+
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < ALLOCATION_CALLS; i++) {
+            assertEquals(DispatchDecision.BLOCKED, buildPreventer.decideUncached(item, link));
+        }
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ALLOCATION_CALLS; i++) {
+            if (buildPreventer.decideUncached(item, link) != DispatchDecision.BLOCKED) {
+                fail("The item must be blocked.");
+            }
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // A single allocation per call would account for at least 16 bytes per call
+        assertTrue("Allocated " + allocated + " bytes in " + ALLOCATION_CALLS + " calls.",
+                   allocated < ALLOCATION_CALLS);
+    }
+
+    /**
+     * Test that an owned item that is not a pipeline step is blocked, even if
+     * its owner is queued with a permitted queue id, as only the direct
+     * owner of a task is checked when dispatching.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testItemOwnedByPermittedQueuedItem() throws Exception {
+        FreeStyleProject owner = jenkinsRule.createFreeStyleProject("owner");
+        owner.scheduleBuild2(OWNER_QUIET_PERIOD);
+        Queue.Item ownerItem = waitForProjectInQueue(owner);
+        QueueFixtures.OwnedProject owned = new QueueFixtures.OwnedProject(jenkinsRule.jenkins, "owned", owner);
+        Queue.Item item = QueueFixtures.newWaitingItem(owned, new Cause.UserIdCause());
+
+        SafeQuietdownConfiguration.get().setAllowAllQueuedItems(false);
+        SafeQuietdownManagementLink link = QueueFixtures.activateQuietdown();
+        BuildPreventer buildPreventer = ExtensionList.lookupSingleton(BuildPreventer.class);
+        assertEquals(DispatchDecision.BLOCKED, buildPreventer.decideUncached(item, link));
+
+        link.addPermittedQueueId(ownerItem.getId());
+        assertEquals(DispatchDecision.BLOCKED, buildPreventer.decideUncached(item, link));
+    }
+}
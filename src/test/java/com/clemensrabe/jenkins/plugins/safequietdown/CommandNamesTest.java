@@ -49,4 +49,31 @@ public class CommandNamesTest {
         CancelSafeQuietDownCommand command = new CancelSafeQuietDownCommand();
         assertEquals(command.getName(), "cancel-safe-quiet-down");
     }
+
+    /**
+     * Test the wait-safe-quiet-down-finished command name.
+     */
+    @Test
+    public void testWaitSafeQuietDownFinishedCommandName() throws Throwable {
+        WaitSafeQuietDownFinishedCommand command = new WaitSafeQuietDownFinishedCommand();
+        assertEquals(command.getName(), "wait-safe-quiet-down-finished");
+    }
+
+    /**
+     * Test the rolling-safe-quiet-down command name.
+     */
+    @Test
+    public void testRollingSafeQuietDownCommandName() throws Throwable {
+        RollingSafeQuietDownCommand command = new RollingSafeQuietDownCommand();
+        assertEquals(command.getName(), "rolling-safe-quiet-down");
+    }
+
+    /**
+     * Test the cancel-rolling-safe-quiet-down command name.
+     */
+    @Test
+    public void testCancelRollingSafeQuietDownCommandName() throws Throwable {
+        CancelRollingSafeQuietDownCommand command = new CancelRollingSafeQuietDownCommand();
+        assertEquals(command.getName(), "cancel-rolling-safe-quiet-down");
+    }
 }
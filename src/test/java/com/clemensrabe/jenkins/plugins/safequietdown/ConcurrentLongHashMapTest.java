@@ -0,0 +1,94 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for the primitive long map.
+ */
+public class ConcurrentLongHashMapTest {
+
+    private static final int NUM_VALUES = 10000;
+
+    /**
+     * Test putting, getting and removing single entries.
+     */
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1L));
+
+        assertNull(map.put(1L, "a"));
+        assertEquals("a", map.put(1L, "b"));
+        assertEquals("b", map.putIfAbsent(1L, "c"));
+        assertEquals("b", map.get(1L));
+        assertTrue(map.containsKey(1L));
+        assertEquals(1, map.size());
+
+        assertEquals("b", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertFalse(map.containsKey(1L));
+        assertTrue(map.isEmpty());
+
+        assertNull(map.putIfAbsent(1L, "c"));
+        assertEquals("c", map.get(1L));
+    }
+
+    /**
+     * Test that the map grows and keeps all entries.
+     */
+    @Test
+    public void testManyValues() {
+        ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>();
+        for (long key = 0; key < NUM_VALUES; key++) {
+            assertNull(map.put(key, key * 2));
+        }
+        assertEquals(NUM_VALUES, map.size());
+        assertEquals(NUM_VALUES / 2, map.removeIf(value -> value % 4 == 0));
+        for (long key = 0; key < NUM_VALUES; key++) {
+            assertEquals(key % 2 == 1 ? Long.valueOf(key * 2) : null, map.get(key));
+        }
+        assertEquals(NUM_VALUES / 2, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1L));
+    }
+
+    /**
+     * Test that the reserved keys are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedKey() {
+        new ConcurrentLongHashMap<String>().put(Long.MIN_VALUE + 1, "a");
+    }
+}
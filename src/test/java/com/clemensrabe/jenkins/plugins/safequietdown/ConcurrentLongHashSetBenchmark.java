@@ -0,0 +1,288 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of {@link ConcurrentLongHashSet} with the
+ * synchronized <code>HashSet&lt;Long&gt;</code> previously used for the
+ * permitted queue ids.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = ConcurrentLongHashSetBenchmark.WARMUP_ITERATIONS)
+@Measurement(iterations = ConcurrentLongHashSetBenchmark.MEASUREMENT_ITERATIONS)
+public class ConcurrentLongHashSetBenchmark {
+
+    /** Number of warmup iterations. */
+    static final int WARMUP_ITERATIONS = 3;
+
+    /** Number of measurement iterations. */
+    static final int MEASUREMENT_ITERATIONS = 5;
+
+    /** Number of threads for the medium contention benchmarks. */
+    private static final int SOME_THREADS = 8;
+
+    /** Number of threads for the high contention benchmarks. */
+    private static final int MANY_THREADS = 32;
+
+    /**
+     * The sets shared by all benchmark threads, filled with the ids 0 to size - 1.
+     */
+    @State(Scope.Benchmark)
+    public static class Sets {
+
+        /** Number of ids stored in the sets. */
+        @Param({"1000", "100000", "1000000"})
+        private int size;
+
+        /** The primitive set. */
+        private ConcurrentLongHashSet concurrentSet;
+
+        /** The synchronized set of boxed ids. */
+        private Set<Long> synchronizedSet;
+
+        /**
+         * Fills both sets.
+         */
+        @Setup(Level.Trial)
+        public void setup() {
+            concurrentSet = new ConcurrentLongHashSet();
+            synchronizedSet = Collections.synchronizedSet(new HashSet<Long>());
+            for (long id = 0; id < size; id++) {
+                concurrentSet.add(id);
+                synchronizedSet.add(id);
+            }
+        }
+    }
+
+    /**
+     * Per-thread id generator. Half of the looked up ids are contained in the
+     * sets, ids added by a thread never collide with those of other threads.
+     */
+    @State(Scope.Thread)
+    public static class Ids {
+
+        /** Counter for the ids to look up. */
+        private long lookupCounter;
+
+        /** Counter for the ids to add, starting far away from the stored ids. */
+        private long addCounter = Thread.currentThread().getId() << Integer.SIZE;
+
+        /**
+         * Gets the next id to look up.
+         * @param sets the sets to look up the id in
+         * @return the id
+         */
+        long nextLookup(final Sets sets) {
+            lookupCounter = (lookupCounter + 1) % (sets.size * 2);
+            return lookupCounter;
+        }
+
+        /**
+         * Gets the next id to add.
+         * @return the id
+         */
+        long nextAdd() {
+            return ++addCounter;
+        }
+    }
+
+    /**
+     * Looks up an id in the primitive set with one thread.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the lookup result
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean concurrentContains1Thread(final Sets sets, final Ids ids) {
+        return sets.concurrentSet.contains(ids.nextLookup(sets));
+    }
+
+    /**
+     * Looks up an id in the primitive set with 8 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the lookup result
+     */
+    @Benchmark
+    @Threads(SOME_THREADS)
+    public boolean concurrentContains8Threads(final Sets sets, final Ids ids) {
+        return sets.concurrentSet.contains(ids.nextLookup(sets));
+    }
+
+    /**
+     * Looks up an id in the primitive set with 32 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the lookup result
+     */
+    @Benchmark
+    @Threads(MANY_THREADS)
+    public boolean concurrentContains32Threads(final Sets sets, final Ids ids) {
+        return sets.concurrentSet.contains(ids.nextLookup(sets));
+    }
+
+    /**
+     * Looks up an id in the synchronized set with one thread.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the lookup result
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean synchronizedContains1Thread(final Sets sets, final Ids ids) {
+        return sets.synchronizedSet.contains(ids.nextLookup(sets));
+    }
+
+    /**
+     * Looks up an id in the synchronized set with 8 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the lookup result
+     */
+    @Benchmark
+    @Threads(SOME_THREADS)
+    public boolean synchronizedContains8Threads(final Sets sets, final Ids ids) {
+        return sets.synchronizedSet.contains(ids.nextLookup(sets));
+    }
+
+    /**
+     * Looks up an id in the synchronized set with 32 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the lookup result
+     */
+    @Benchmark
+    @Threads(MANY_THREADS)
+    public boolean synchronizedContains32Threads(final Sets sets, final Ids ids) {
+        return sets.synchronizedSet.contains(ids.nextLookup(sets));
+    }
+
+    /**
+     * Adds and removes an id in the primitive set with one thread.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the result of the removal
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean concurrentAdd1Thread(final Sets sets, final Ids ids) {
+        long id = ids.nextAdd();
+        sets.concurrentSet.add(id);
+        return sets.concurrentSet.remove(id);
+    }
+
+    /**
+     * Adds and removes an id in the primitive set with 8 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the result of the removal
+     */
+    @Benchmark
+    @Threads(SOME_THREADS)
+    public boolean concurrentAdd8Threads(final Sets sets, final Ids ids) {
+        long id = ids.nextAdd();
+        sets.concurrentSet.add(id);
+        return sets.concurrentSet.remove(id);
+    }
+
+    /**
+     * Adds and removes an id in the primitive set with 32 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the result of the removal
+     */
+    @Benchmark
+    @Threads(MANY_THREADS)
+    public boolean concurrentAdd32Threads(final Sets sets, final Ids ids) {
+        long id = ids.nextAdd();
+        sets.concurrentSet.add(id);
+        return sets.concurrentSet.remove(id);
+    }
+
+    /**
+     * Adds and removes an id in the synchronized set with one thread.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the result of the removal
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean synchronizedAdd1Thread(final Sets sets, final Ids ids) {
+        long id = ids.nextAdd();
+        sets.synchronizedSet.add(id);
+        return sets.synchronizedSet.remove(id);
+    }
+
+    /**
+     * Adds and removes an id in the synchronized set with 8 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the result of the removal
+     */
+    @Benchmark
+    @Threads(SOME_THREADS)
+    public boolean synchronizedAdd8Threads(final Sets sets, final Ids ids) {
+        long id = ids.nextAdd();
+        sets.synchronizedSet.add(id);
+        return sets.synchronizedSet.remove(id);
+    }
+
+    /**
+     * Adds and removes an id in the synchronized set with 32 threads.
+     * @param sets the sets
+     * @param ids the id generator
+     * @return the result of the removal
+     */
+    @Benchmark
+    @Threads(MANY_THREADS)
+    public boolean synchronizedAdd32Threads(final Sets sets, final Ids ids) {
+        long id = ids.nextAdd();
+        sets.synchronizedSet.add(id);
+        return sets.synchronizedSet.remove(id);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test class for the primitive long set.
+ */
+public class ConcurrentLongHashSetTest {
+
+    private static final int NUM_VALUES = 10000;
+
+    /** Number of threads writing concurrently. */
+    private static final int NUM_THREADS = 8;
+
+    /**
+     * Test adding, checking and removing single values.
+     */
+    @Test
+    public void testAddContainsRemove() {
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1L));
+
+        assertTrue(set.add(1L));
+        assertFalse(set.add(1L));
+        assertTrue(set.contains(1L));
+        assertEquals(1, set.size());
+
+        assertTrue(set.remove(1L));
+        assertFalse(set.remove(1L));
+        assertFalse(set.contains(1L));
+        assertTrue(set.isEmpty());
+
+        assertTrue(set.add(1L));
+        assertTrue(set.contains(1L));
+    }
+
+    /**
+     * Test that the set grows and keeps all values.
+     */
+    @Test
+    public void testManyValues() {
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        for (long value = 0; value < NUM_VALUES; value++) {
+            assertTrue(set.add(value));
+        }
+        assertEquals(NUM_VALUES, set.size());
+        for (long value = 0; value < NUM_VALUES; value += 2) {
+            assertTrue(set.remove(value));
+        }
+        for (long value = 0; value < NUM_VALUES; value++) {
+            assertEquals(value % 2 == 1, set.contains(value));
+        }
+
+        Set<Long> values = new HashSet<Long>();
+        set.forEach(values::add);
+        assertEquals(NUM_VALUES / 2, values.size());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1L));
+    }
+
+    /**
+     * Test that concurrent writers to different segments do not lose values.
+     */
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        final ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        Thread[] writers = new Thread[NUM_THREADS];
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final long offset = (long) i * NUM_VALUES;
+            writers[i] = new Thread(() -> {
+                for (long value = 0; value < NUM_VALUES; value++) {
+                    set.add(offset + value);
+                }
+                for (long value = 0; value < NUM_VALUES; value += 2) {
+                    set.remove(offset + value);
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(NUM_THREADS * NUM_VALUES / 2, set.size());
+        assertEquals(NUM_THREADS * NUM_VALUES / 2, set.toArray().length);
+        for (long value = 0; value < NUM_THREADS * NUM_VALUES; value++) {
+            assertEquals(value % 2 == 1, set.contains(value));
+        }
+    }
+
+    /**
+     * Test that the reserved values are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedValue() {
+        new ConcurrentLongHashSet().add(Long.MIN_VALUE);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueTaskFuture;
+
+/**
+ * Test class for the drain estimator.
+ */
+public class DrainEstimatorTest extends SafeQuietdownTestBase {
+
+    /** Quiet period of the queued item in seconds, long enough to keep it queued during the test. */
+    private static final int ITEM_QUIET_PERIOD = 60;
+
+    /** Sleep time of the build establishing the estimated duration in milliseconds. */
+    private static final int BUILD_SLEEP_TIME = 100;
+
+    /**
+     * Jenkins rule instance.
+     */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    /**
+     * Test the estimate without any running builds.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testIdle() throws Exception {
+        DrainEstimate estimate = DrainEstimator.get().compute();
+        assertEquals(0, estimate.getRemainingMillis());
+        assertEquals(0, estimate.getNumberOfRunningBuilds());
+        assertEquals(0, estimate.getNumberOfQueuedItems());
+        assertEquals(estimate.getTimestamp(), estimate.getEstimatedCompletion());
+        assertEquals(-1, DrainEstimator.get().getJobEstimate("doesNotExist"));
+    }
+
+    /**
+     * Test that the downstream fan-out is recorded and the running builds are
+     * considered.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testFanOut() throws Exception {
+        FreeStyleProject upstream = jenkinsRule.createFreeStyleProject("upstream");
+        FreeStyleProject downstream = jenkinsRule.createFreeStyleProject("downstream");
+        downstream.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+
+        FreeStyleBuild upstreamBuild = jenkinsRule.buildAndAssertSuccess(upstream);
+        QueueTaskFuture<FreeStyleBuild> buildFuture =
+            downstream.scheduleBuild2(0, new CauseAction(new Cause.UpstreamCause(upstreamBuild)));
+        buildFuture.waitForStart();
+        assertTrue(DrainEstimator.get().getDownstreamJobs("upstream").contains("downstream"));
+
+        DrainEstimate estimate = DrainEstimator.get().compute();
+        assertEquals(1, estimate.getNumberOfRunningBuilds());
+        // The downstream job never finished before, so its duration is unknown
+        assertEquals(1, estimate.getNumberOfUnknownEstimates());
+
+        jenkinsRule.assertBuildStatusSuccess(buildFuture);
+        jenkinsRule.waitUntilNoActivity();
+    }
+
+    /**
+     * Test that the chain of a queue item is computed from the cached
+     * estimated durations only, which are filled by refreshing the estimates
+     * of the permitted queue items.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testChainMillisReadsCachedEstimates() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject("project");
+        project.getBuildersList().add(new SleepBuilder(BUILD_SLEEP_TIME));
+        jenkinsRule.buildAndAssertSuccess(project);
+        project.scheduleBuild2(ITEM_QUIET_PERIOD);
+        Queue.Item item = waitForProjectInQueue(project);
+
+        DrainEstimator estimator = DrainEstimator.get();
+        // The estimated duration of the job was never computed, so it is unknown
+        assertEquals(0, estimator.getChainMillis(item, new HashMap<String, Long>()));
+
+        SafeQuietdownManagementLink link = QueueFixtures.activateQuietdown();
+        link.addPermittedQueueId(item.getId());
+        estimator.refreshJobEstimates();
+        assertTrue(project.getEstimatedDuration() >= BUILD_SLEEP_TIME);
+        assertEquals(project.getEstimatedDuration(), estimator.getChainMillis(item, new HashMap<String, Long>()));
+
+        Queue.getInstance().cancel(item);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test class for the drain orders of the permitted queue items.
+ */
+public class DrainOrderTest {
+
+    /**
+     * Test that the permitted first order keeps the queue order.
+     */
+    @Test
+    public void testPermittedFirstKeepsOrder() {
+        List<String> items = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+        DrainOrder.PERMITTED_FIRST.sort(items, item -> item.equals("c") ? 1L : 0L);
+        assertEquals(Arrays.asList("a", "b", "c"), items);
+    }
+
+    /**
+     * Test that the longest chain first order is stable for equal chains.
+     */
+    @Test
+    public void testLongestChainFirst() {
+        Map<String, Long> chains = new HashMap<String, Long>();
+        chains.put("a", 1L);
+        chains.put("b", 2L);
+        chains.put("c", 1L);
+        chains.put("d", 3L);
+        List<String> items = new ArrayList<String>(Arrays.asList("a", "b", "c", "d"));
+        DrainOrder.LONGEST_CHAIN_FIRST.sort(items, chains::get);
+        assertEquals(Arrays.asList("d", "b", "a", "c"), items);
+    }
+
+    /**
+     * Test the makespan of the synthetic drain for both orders. The long
+     * build-deploy-smoke chain starts first with the longest chain first
+     * order, so the drain finishes a minute earlier.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testSimulateSyntheticQueue() throws Exception {
+        DrainSimulator simulator = DrainSimulator.load(getClass().getResourceAsStream(
+            "DrainOrderTest/syntheticQueue.txt"));
+        assertEquals(TimeUnit.SECONDS.toMillis(600), simulator.simulate(DrainOrder.PERMITTED_FIRST));
+        assertEquals(TimeUnit.SECONDS.toMillis(540), simulator.simulate(DrainOrder.LONGEST_CHAIN_FIRST));
+    }
+}
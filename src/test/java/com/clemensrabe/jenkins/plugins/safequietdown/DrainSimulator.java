@@ -0,0 +1,161 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a queue of permitted builds on a fixed number of executors to
+ * compare the makespan of the drain orders. The chains are ranked by
+ * {@link DrainEstimator#getChainMillis(String, java.util.function.ToLongFunction, java.util.function.Function, Map)}
+ * with the durations and downstream jobs of the description. The description
+ * contains the jobs with their durations and downstream jobs and the
+ * permitted queue at activation:
+ * <pre>
+ * # comment
+ * executors &lt;number&gt;
+ * job &lt;name&gt; &lt;duration in seconds&gt; [&lt;downstream job&gt; ...]
+ * queue &lt;job&gt; [&lt;job&gt; ...]
+ * </pre>
+ * A downstream build enters the queue at the end when its upstream build
+ * is finished. Whenever an executor is free, the queue is sorted by the
+ * drain order and the first item is started.
+ */
+final class DrainSimulator {
+
+    /** Durations of the jobs in milliseconds by name. */
+    private final Map<String, Long> durations = new HashMap<String, Long>();
+
+    /** Downstream jobs by name of the upstream job. */
+    private final Map<String, List<String>> downstreamJobs = new HashMap<String, List<String>>();
+
+    /** The permitted queue at activation. */
+    private final List<String> queue = new ArrayList<String>();
+
+    /** Number of executors. */
+    private int executors = 1;
+
+    /**
+     * Loads a queue description.
+     * @param in the description
+     * @return the simulator
+     * @throws IOException if the description can't be read
+     */
+    static DrainSimulator load(final InputStream in) throws IOException {
+        DrainSimulator simulator = new DrainSimulator();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                switch (tokens[0]) {
+                    case "executors":
+                        simulator.executors = Integer.parseInt(tokens[1]);
+                        break;
+                    case "job":
+                        simulator.durations.put(tokens[1], TimeUnit.SECONDS.toMillis(Long.parseLong(tokens[2])));
+                        simulator.downstreamJobs.put(tokens[1], Arrays.asList(tokens).subList(3, tokens.length));
+                        break;
+                    case "queue":
+                        simulator.queue.addAll(Arrays.asList(tokens).subList(1, tokens.length));
+                        break;
+                    default:
+                        throw new IOException("Unknown record: " + line);
+                }
+            }
+        }
+        return simulator;
+    }
+
+    /**
+     * Simulates the drain.
+     * @param drainOrder the drain order
+     * @return the makespan of the drain in milliseconds
+     */
+    long simulate(final DrainOrder drainOrder) {
+        Map<String, Long> memo = new HashMap<String, Long>();
+        List<String> queued = new ArrayList<String>(queue);
+        PriorityQueue<Build> running = new PriorityQueue<Build>();
+        long now = 0;
+        while (!queued.isEmpty() || !running.isEmpty()) {
+            while ((running.size() < executors) && !queued.isEmpty()) {
+                drainOrder.sort(queued, job -> DrainEstimator.getChainMillis(job, durations::get, downstreamJobs::get,
+                                                                             memo));
+                String job = queued.remove(0);
+                running.add(new Build(job, now + durations.get(job)));
+            }
+            Build finished = running.poll();
+            now = finished.end;
+            queued.addAll(downstreamJobs.get(finished.job));
+        }
+        return now;
+    }
+
+    /**
+     * A running build.
+     */
+    private static final class Build implements Comparable<Build> {
+
+        /** The job of the build. */
+        private final String job;
+
+        /** The end time of the build. */
+        private final long end;
+
+        /**
+         * Constructor.
+         * @param job the job of the build
+         * @param end the end time of the build
+         */
+        Build(final String job, final long end) {
+            this.job = job;
+            this.end = end;
+        }
+
+        /**
+         * Orders the builds by their end time.
+         * @param other the other build
+         * @return the comparison result
+         */
+        @Override
+        public int compareTo(final Build other) {
+            return Long.compare(end, other.end);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.ExtensionList;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the queue dispatch hot path against synthetic queues of 1k to
+ * 100k items. A quarter of the items is started manually, the others are
+ * downstream items of upstream builds with nested upstream causes, half of
+ * them with a permitted upstream build. Every tenth item is a step of a
+ * synthetic pipeline with a chain of owner tasks also waiting in the queue.
+ * The items are not added to the Jenkins queue, so the measured methods are
+ * called with the synthetic items directly. They are only recorded by the
+ * queue index as if they entered the queue while the quietdown is active.
+ * One operation processes the whole queue, like a queue maintenance.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = QueueDispatchBenchmark.WARMUP_ITERATIONS)
+@Measurement(iterations = QueueDispatchBenchmark.MEASUREMENT_ITERATIONS)
+public class QueueDispatchBenchmark {
+
+    /** Number of warmup iterations. */
+    static final int WARMUP_ITERATIONS = 3;
+
+    /** Number of measurement iterations. */
+    static final int MEASUREMENT_ITERATIONS = 5;
+
+    /** Number of upstream builds the synthetic items refer to. */
+    static final int NUM_UPSTREAM_BUILDS = 8;
+
+    /** Every n-th item is started manually. */
+    static final int MANUAL_ITEM_INTERVAL = 4;
+
+    /** Every n-th item is a pipeline step. */
+    static final int PIPELINE_STEP_INTERVAL = 10;
+
+    /** Depth of the owner task chains of the pipeline steps. */
+    static final int OWNER_CHAIN_DEPTH = 3;
+
+    /** Number of pipeline steps whose owner queue ids are looked up per operation. */
+    static final int NUM_OWNER_LOOKUPS = 100;
+
+    /**
+     * Jenkins with an active safe quietdown and a synthetic queue.
+     */
+    public static class QueueState extends JmhBenchmarkState {
+
+        /** Number of items in the synthetic queue. */
+        @Param({ "1000", "10000", "100000" })
+        private int queueSize;
+
+        /** The dispatcher under test. */
+        private BuildPreventer buildPreventer;
+
+        /** The management link holding the permitted queue ids. */
+        private SafeQuietdownManagementLink managementLink;
+
+        /** The synthetic queue. */
+        private final List<Queue.Item> items = new ArrayList<Queue.Item>();
+
+        /** The pipeline steps of the synthetic queue. */
+        private final List<Queue.Item> pipelineSteps = new ArrayList<Queue.Item>();
+
+        /**
+         * Builds the upstream builds, creates the synthetic queue and activates the safe quietdown.
+         * @throws Exception if something goes wrong
+         */
+        @Override
+        public void setup() throws Exception {
+            Logger.getLogger(BuildPreventer.class.getName()).setLevel(Level.INFO);
+            buildPreventer = ExtensionList.lookupSingleton(BuildPreventer.class);
+
+            // Upstream builds with nested upstream causes
+            FreeStyleProject trigger = getJenkins().createProject(FreeStyleProject.class, "trigger");
+            FreeStyleProject upstream = getJenkins().createProject(FreeStyleProject.class, "upstream");
+            FreeStyleProject downstream = getJenkins().createProject(FreeStyleProject.class, "downstream");
+            FreeStyleBuild triggerBuild = trigger.scheduleBuild2(0).get();
+            List<FreeStyleBuild> upstreamBuilds = new ArrayList<FreeStyleBuild>();
+            for (int i = 0; i < NUM_UPSTREAM_BUILDS; i++) {
+                upstreamBuilds.add(upstream.scheduleBuild2(
+                    0, new CauseAction(new Cause.UpstreamCause(triggerBuild))).get());
+            }
+
+            managementLink = QueueFixtures.activateQuietdown();
+            for (int i = 0; i < NUM_UPSTREAM_BUILDS; i += 2) {
+                managementLink.addPermittedQueueId(upstreamBuilds.get(i).getQueueId());
+            }
+
+            for (int i = 0; i < queueSize; i++) {
+                if (i % PIPELINE_STEP_INTERVAL == 0) {
+                    addPipelineStep(i);
+                } else if (i % MANUAL_ITEM_INTERVAL == 0) {
+                    items.add(QueueFixtures.newWaitingItem(downstream, new Cause.UserIdCause()));
+                } else {
+                    Cause cause = new Cause.UpstreamCause(upstreamBuilds.get(i % NUM_UPSTREAM_BUILDS));
+                    items.add(QueueFixtures.newWaitingItem(downstream, cause));
+                }
+            }
+
+            QueueIndex queueIndex = QueueIndex.get();
+            for (Queue.Item item : items) {
+                queueIndex.itemEntered(item, true);
+            }
+        }
+
+        /**
+         * Adds a pipeline step and its chain of owner tasks to the queue.
+         * @param index the index of the step
+         */
+        private void addPipelineStep(final int index) {
+            Queue.Task owner = null;
+            for (int depth = 0; depth < OWNER_CHAIN_DEPTH; depth++) {
+                QueueFixtures.OwnedProject task =
+                    new QueueFixtures.OwnedProject(getJenkins(), "step-" + index + "-" + depth, owner);
+                Queue.Item item = QueueFixtures.newWaitingItem(task, new Cause.UserIdCause());
+                items.add(item);
+                if (depth == OWNER_CHAIN_DEPTH - 1) {
+                    pipelineSteps.add(item);
+                }
+                owner = task;
+            }
+        }
+    }
+
+    /**
+     * Calls the dispatcher for every item of the queue. After the first
+     * operation every item is either permitted or remembered as blocked, so
+     * this measures the steady state of the dispatcher, not the decisions.
+     * @param state the benchmark state
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void canRun(final QueueState state, final Blackhole blackhole) {
+        for (Queue.Item item : state.items) {
+            blackhole.consume(state.buildPreventer.canRun(item));
+        }
+    }
+
+    /**
+     * Decides on every item of the queue as on the first call of the
+     * dispatcher for the item, i.e., without the permitted downstream items
+     * and the remembered blocked items of earlier operations. As the decision
+     * changes nothing, every operation walks the upstream and owner tasks of
+     * all items again.
+     * @param state the benchmark state
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void decideUncached(final QueueState state, final Blackhole blackhole) {
+        for (Queue.Item item : state.items) {
+            blackhole.consume(state.buildPreventer.decideUncached(item, state.managementLink));
+        }
+    }
+
+    /**
+     * Collects the permitted queue ids of the whole queue.
+     * @param state the benchmark state
+     * @return the permitted queue ids
+     */
+    @Benchmark
+    public Object getPermittedQueueItemIds(final QueueState state) {
+        return QueueUtils.getPermittedQueueItemIds(state.items, false);
+    }
+
+    /**
+     * Resolves the upstream queue ids of every item of the queue.
+     * @param state the benchmark state
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void getUpstreamQueueIds(final QueueState state, final Blackhole blackhole) {
+        for (Queue.Item item : state.items) {
+            blackhole.consume(QueueUtils.getUpstreamQueueIds(item));
+        }
+    }
+
+    /**
+     * Looks up the owner queue ids of the first pipeline steps.
+     * @param state the benchmark state
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void getOwnerQueueIds(final QueueState state, final Blackhole blackhole) {
+        int lookups = Math.min(NUM_OWNER_LOOKUPS, state.pipelineSteps.size());
+        for (int i = 0; i < lookups; i++) {
+            blackhole.consume(QueueUtils.getOwnerQueueIds(state.pipelineSteps.get(i), state.items));
+        }
+    }
+
+    /**
+     * Looks up the owner queue ids of the first pipeline steps using a single
+     * resolver shared by all lookups, like the resolver of the queue index.
+     * @param state the benchmark state
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void getOwnerQueueIdsResolved(final QueueState state, final Blackhole blackhole) {
+        OwnerChainResolver resolver = new OwnerChainResolver(state.items);
+        int lookups = Math.min(NUM_OWNER_LOOKUPS, state.pipelineSteps.size());
+        for (int i = 0; i < lookups; i++) {
+            blackhole.consume(resolver.getOwnerQueueIds(state.pipelineSteps.get(i)));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.FreeStyleProject;
+import hudson.model.ItemGroup;
+import hudson.model.Queue;
+
+/**
+ * Fixtures shared by the tests and benchmarks that call the dispatcher,
+ * the sorter or the queue utils with synthetic queue items.
+ */
+final class QueueFixtures {
+
+    /**
+     * Utility class.
+     */
+    private QueueFixtures() {
+    }
+
+    /**
+     * Creates a waiting item that is not put into the queue.
+     * @param task the task of the item
+     * @param causes the causes of the item
+     * @return the waiting item
+     */
+    static Queue.WaitingItem newWaitingItem(final Queue.Task task, final Cause... causes) {
+        if (causes.length == 0) {
+            return new Queue.WaitingItem(Calendar.getInstance(), task, Collections.<Action>emptyList());
+        }
+        return new Queue.WaitingItem(Calendar.getInstance(), task,
+                                     Collections.<Action>singletonList(new CauseAction(causes)));
+    }
+
+    /**
+     * Activates the safe quietdown mode synchronously, i.e., without the
+     * snapshot of the permitted queue ids.
+     * @return the management link
+     */
+    static SafeQuietdownManagementLink activateQuietdown() {
+        SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+        managementLink.toggleQuietdown();
+        managementLink.finishActivation();
+        return managementLink;
+    }
+
+    /**
+     * A project with an owner task, standing in for a pipeline step.
+     */
+    public static class OwnedProject extends FreeStyleProject {
+
+        /** The owner task or null if the project is its own owner. */
+        private final transient Queue.Task owner;
+
+        /**
+         * Constructor.
+         * @param parent the parent item group
+         * @param name the name of the project
+         * @param owner the owner task or null
+         */
+        OwnedProject(final ItemGroup parent, final String name, final Queue.Task owner) {
+            super(parent, name);
+            this.owner = owner;
+        }
+
+        /**
+         * Gets the owner task.
+         * @return the owner task
+         */
+        @Override
+        public Queue.Task getOwnerTask() {
+            if (owner == null) {
+                return this;
+            }
+            return owner;
+        }
+    }
+}
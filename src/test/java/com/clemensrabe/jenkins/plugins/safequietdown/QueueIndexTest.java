@@ -0,0 +1,299 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.queue.QueueTaskFuture;
+
+/**
+ * Test class for the event driven queue index.
+ */
+public class QueueIndexTest extends SafeQuietdownTestBase {
+
+    /**
+     * Jenkins rule instance.
+     */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    /**
+     * Test that queued items are indexed and only permitted if all queued
+     * items are allowed.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testQueuedItems() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item item = waitForProjectInQueue(project);
+
+        SafeQuietdownConfiguration.get().setAllowAllQueuedItems(false);
+        ConcurrentLongHashSet permittedQueueIds = new ConcurrentLongHashSet();
+        QueueIndex.get().collectPermittedQueueIds(permittedQueueIds);
+        assertFalse(permittedQueueIds.contains(item.getId()));
+
+        SafeQuietdownConfiguration.get().setAllowAllQueuedItems(true);
+        QueueIndex.get().collectPermittedQueueIds(permittedQueueIds);
+        assertTrue(permittedQueueIds.contains(item.getId()));
+    }
+
+    /**
+     * Test that a restricted activation only permits the builds running on
+     * the drained nodes.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testScopedActivationPermitsOnlyBuildsOnDrainedNodes() throws Exception {
+        jenkinsRule.createOnlineSlave(Label.get("drained"));
+        jenkinsRule.createOnlineSlave(Label.get("other"));
+        FreeStyleProject drainedProject = jenkinsRule.createFreeStyleProject("drainedProject");
+        drainedProject.setAssignedLabel(Label.get("drained"));
+        drainedProject.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        FreeStyleProject otherProject = jenkinsRule.createFreeStyleProject("otherProject");
+        otherProject.setAssignedLabel(Label.get("other"));
+        otherProject.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> drainedFuture = drainedProject.scheduleBuild2(0);
+        QueueTaskFuture<FreeStyleBuild> otherFuture = otherProject.scheduleBuild2(0);
+        FreeStyleBuild drainedBuild = drainedFuture.waitForStart();
+        FreeStyleBuild otherBuild = otherFuture.waitForStart();
+
+        ConcurrentLongHashSet permittedQueueIds = new ConcurrentLongHashSet();
+        QueueIndex.get().collectPermittedQueueIds(permittedQueueIds, Label.parseExpression("drained"));
+        assertTrue(permittedQueueIds.contains(drainedBuild.getQueueId()));
+        assertFalse(permittedQueueIds.contains(otherBuild.getQueueId()));
+
+        jenkinsRule.assertBuildStatusSuccess(drainedFuture);
+        jenkinsRule.assertBuildStatusSuccess(otherFuture);
+    }
+
+    /**
+     * Test that running builds are indexed until they are finished.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testRunningBuilds() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> buildFuture = project.scheduleBuild2(0);
+        FreeStyleBuild build = buildFuture.waitForStart();
+
+        // The run listener is notified shortly after the start of the build
+        int elapsedSeconds = 0;
+        while (!QueueIndex.get().isRunning(build.getQueueId()) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+        assertTrue(QueueIndex.get().isRunning(build.getQueueId()));
+        assertEquals(1, QueueIndex.get().getNumberOfRunningBuilds());
+
+        jenkinsRule.assertBuildStatusSuccess(buildFuture);
+        jenkinsRule.waitUntilNoActivity();
+        assertFalse(QueueIndex.get().isRunning(build.getQueueId()));
+    }
+
+    /**
+     * Test that a build recorded as running after it finished, e.g., by a
+     * prime racing with the end of the build, is removed by the sweep.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testRemovesStaleRunningBuild() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(project);
+        jenkinsRule.waitUntilNoActivity();
+
+        QueueIndex.get().runStarted(build);
+        assertTrue(QueueIndex.get().isRunning(build.getQueueId()));
+
+        QueueIndex.get().removeFinishedRuns(SafeQuietdownManagementLink.get());
+        assertFalse(QueueIndex.get().isRunning(build.getQueueId()));
+        assertEquals(0, QueueIndex.get().getNumberOfRunningBuilds());
+    }
+
+    /**
+     * Test that the upstream queue id of a cause is resolved for running
+     * and finished builds.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testGetUpstreamQueueId() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(project);
+        Cause.UpstreamCause cause = new Cause.UpstreamCause(build);
+
+        assertEquals(build.getQueueId(), QueueIndex.get().getUpstreamQueueId(cause));
+
+        // Not running and not permitted, so it must be loaded
+        QueueIndex.get().removeFinishedRuns(SafeQuietdownManagementLink.get());
+        assertEquals(build.getQueueId(), QueueIndex.get().getUpstreamQueueId(cause));
+    }
+
+    /**
+     * Test that the upstream queue ids of a queued item are resolved through
+     * the nested upstream causes if the direct upstream build is unknown to
+     * the index, without loading any build.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testResolveNestedUpstreamQueueIds() throws Exception {
+        FreeStyleProject grandparent = jenkinsRule.createFreeStyleProject("grandparent");
+        FreeStyleProject parent = jenkinsRule.createFreeStyleProject("parent");
+        FreeStyleProject child = jenkinsRule.createFreeStyleProject("child");
+        FreeStyleBuild grandparentBuild = jenkinsRule.buildAndAssertSuccess(grandparent);
+        FreeStyleBuild parentBuild = jenkinsRule.assertBuildStatusSuccess(
+            parent.scheduleBuild2(0, new Cause.UpstreamCause(grandparentBuild)));
+        Cause.UpstreamCause childCause = new Cause.UpstreamCause(parentBuild);
+
+        // Only the permitted grandparent build is kept in the index
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        link.addPermittedQueueId(grandparentBuild.getQueueId());
+        QueueIndex.get().removeFinishedRuns(link);
+
+        child.scheduleBuild2(QUIET_PERIOD, childCause);
+        Queue.Item item = waitForProjectInQueue(child);
+        long[] upstreamIds = QueueIndex.get().getUpstreamQueueIds(item);
+        assertEquals(1, upstreamIds.length);
+        assertEquals(grandparentBuild.getQueueId(), upstreamIds[0]);
+        assertTrue(QueueIndex.get().isInDownstreamClosure(item, link));
+
+        // The dispatcher keeps the resolved ids until the item leaves the queue
+        assertTrue(QueueIndex.get().hasUpstreamQueueIds(item.getId()));
+        Queue.getInstance().cancel(item);
+        assertFalse(QueueIndex.get().hasUpstreamQueueIds(item.getId()));
+    }
+
+    /**
+     * Test that the upstream builds of items entering the queue are resolved
+     * only while the safe quietdown mode is active, that items queued before
+     * the activation are permitted by the activation and that items entering
+     * afterwards are permitted on entry.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testActivationWithQueuedDownstreamItems() throws Exception {
+        FreeStyleProject parent = jenkinsRule.createFreeStyleProject("parent");
+        FreeStyleProject queuedChild = jenkinsRule.createFreeStyleProject("queuedChild");
+        FreeStyleProject enteringChild = jenkinsRule.createFreeStyleProject("enteringChild");
+        FreeStyleBuild parentBuild = jenkinsRule.buildAndAssertSuccess(parent);
+        SafeQuietdownConfiguration.get().setAllowAllQueuedItems(false);
+
+        // Nothing is resolved on entry while the quietdown is inactive
+        queuedChild.scheduleBuild2(QUIET_PERIOD, new Cause.UpstreamCause(parentBuild));
+        Queue.Item queuedItem = waitForProjectInQueue(queuedChild);
+        assertFalse(QueueIndex.get().hasUpstreamQueueIds(queuedItem.getId()));
+
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        toggleSafeQuietdown();
+        int elapsedSeconds = 0;
+        while ((link.getState() != SafeQuietdownState.ACTIVE) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+        assertEquals(SafeQuietdownState.ACTIVE, link.getState());
+        assertTrue(link.isPermittedQueueId(queuedItem.getId()));
+
+        // The finished parent build is still indexed, so the entering item is resolved and permitted on entry
+        link.addPermittedQueueId(parentBuild.getQueueId());
+        enteringChild.scheduleBuild2(QUIET_PERIOD, new Cause.UpstreamCause(parentBuild));
+        Queue.Item enteringItem = waitForProjectInQueue(enteringChild);
+        assertTrue(QueueIndex.get().hasUpstreamQueueIds(enteringItem.getId()));
+        assertTrue(link.isPermittedQueueId(enteringItem.getId()));
+    }
+
+    /**
+     * Test that an item whose permitted upstream build is unknown to the
+     * index, e.g., after a restart, is permitted once the build is loaded
+     * asynchronously.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testLoadsUnindexedUpstreamBuild() throws Exception {
+        FreeStyleProject parent = jenkinsRule.createFreeStyleProject("parent");
+        FreeStyleProject child = jenkinsRule.createFreeStyleProject("child");
+        FreeStyleBuild parentBuild = jenkinsRule.buildAndAssertSuccess(parent);
+        SafeQuietdownConfiguration.get().setAllowAllQueuedItems(false);
+
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        toggleSafeQuietdown();
+        int elapsedSeconds = 0;
+        while ((link.getState() != SafeQuietdownState.ACTIVE) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+        assertEquals(SafeQuietdownState.ACTIVE, link.getState());
+
+        // Drop the finished parent build from the index before it is permitted, like after a restart
+        QueueIndex.get().removeFinishedRuns(link);
+        link.addPermittedQueueId(parentBuild.getQueueId());
+
+        QueueTaskFuture<FreeStyleBuild> childFuture = child.scheduleBuild2(0, new Cause.UpstreamCause(parentBuild));
+        Queue.Item childItem = waitForProjectInQueue(child);
+        elapsedSeconds = 0;
+        while (!link.isPermittedQueueId(childItem.getId()) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+        assertTrue(link.isPermittedQueueId(childItem.getId()));
+        jenkinsRule.assertBuildStatusSuccess(childFuture);
+    }
+
+    /**
+     * Test that the owner chain resolver is shared until the queue changes.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testOwnerChainResolverIsSharedUntilQueueChanges() throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        QueueIndex queueIndex = QueueIndex.get();
+        OwnerChainResolver resolver = queueIndex.getOwnerChainResolver();
+        assertSame(resolver, queueIndex.getOwnerChainResolver());
+
+        project.scheduleBuild2(QUIET_PERIOD);
+        Queue.Item item = waitForProjectInQueue(project);
+        OwnerChainResolver enteredResolver = queueIndex.getOwnerChainResolver();
+        assertNotSame(resolver, enteredResolver);
+        assertSame(enteredResolver, queueIndex.getOwnerChainResolver());
+
+        Queue.getInstance().cancel(item);
+        assertNotSame(enteredResolver, queueIndex.getOwnerChainResolver());
+    }
+}
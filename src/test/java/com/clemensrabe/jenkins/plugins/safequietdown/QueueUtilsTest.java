@@ -30,6 +30,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -190,6 +193,34 @@ public class QueueUtilsTest {
         assertTrue(QueueUtils.getUpstreamQueueIds(Queue.getInstance().getItem(childQueueId)).contains(parentQueueId));
     }
 
+    /**
+     * Test the getOwnerQueueIds() method on a chain of owned tasks.
+     */
+    @Test
+    public void testGetOwnerQueueIds() {
+        Jenkins jenkins = jenkinsRule.getInstance();
+        QueueFixtures.OwnedProject root = new QueueFixtures.OwnedProject(jenkins, "root", null);
+        QueueFixtures.OwnedProject middle = new QueueFixtures.OwnedProject(jenkins, "middle", root);
+        QueueFixtures.OwnedProject leaf = new QueueFixtures.OwnedProject(jenkins, "leaf", middle);
+        Queue.Item rootItem = QueueFixtures.newWaitingItem(root);
+        Queue.Item middleItem = QueueFixtures.newWaitingItem(middle);
+        Queue.Item leafItem = QueueFixtures.newWaitingItem(leaf);
+        List<Queue.Item> items = Arrays.asList(rootItem, middleItem, leafItem);
+
+        Set<Long> ownerIds = QueueUtils.getOwnerQueueIds(leafItem, items);
+        assertEquals(2, ownerIds.size());
+        assertTrue(ownerIds.contains(rootItem.getId()));
+        assertTrue(ownerIds.contains(middleItem.getId()));
+        assertTrue(QueueUtils.getOwnerQueueIds(rootItem, items).isEmpty());
+
+        // The memoized chains of the owners are reused for the later lookups
+        OwnerChainResolver resolver = new OwnerChainResolver(items);
+        assertEquals(Arrays.asList(middle, root), resolver.getOwnerChain(leaf));
+        assertEquals(Collections.singletonList(root), resolver.getOwnerChain(middle));
+        assertTrue(resolver.getOwnerChain(root).isEmpty());
+        assertEquals(Collections.singleton(rootItem.getId()), resolver.getOwnerQueueIds(middleItem));
+    }
+
     /**
      * Test the getNumberOfBuildableQueueItems() method.
      * @throws Exception if something goes wrong.
@@ -0,0 +1,189 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import hudson.model.Label;
+
+/**
+ * Test class for the persistence of the safe quietdown state.
+ */
+public class QuietdownStateStoreTest extends SafeQuietdownTestBase {
+
+    /** The test sessions. */
+    @Rule
+    public JenkinsSessionRule sessions = new JenkinsSessionRule();
+
+    private static final int WINDOW_DURATION_MINUTES = 60;
+
+    /** End of the scheduled window activated in the first session. */
+    private long windowEnd;
+
+    /**
+     * Enables the periodic checks of the window scheduler again.
+     */
+    @After
+    public void tearDown() {
+        QuietdownWindowScheduler.setDisabled(false);
+    }
+
+    /**
+     * Test that an active quietdown and its permitted queue ids survive a restart.
+     * @throws Throwable if something goes wrong
+     */
+    @Test
+    public void testRestoresActiveQuietdown() throws Throwable {
+        sessions.then(r -> {
+            SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+            link.performToggleQuietdown(Label.parseExpression("pool"));
+            int elapsedSeconds = 0;
+            while ((link.getState() == SafeQuietdownState.ACTIVATING) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+                TimeUnit.SECONDS.sleep(1);
+                elapsedSeconds++;
+            }
+            link.addPermittedQueueId(42L);
+            link.addPermittedQueueId(43L);
+            link.markFinishedQueueId(43L);
+            QuietdownStateStore.get().save(link);
+        });
+        sessions.then(r -> {
+            SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+            assertEquals(SafeQuietdownState.ACTIVE, link.getState());
+            assertTrue("queue index primed on startup", QueueIndex.get().isPrimed());
+            assertEquals("pool", link.getScopeExpression());
+            assertTrue(link.isPermittedQueueId(42L));
+            assertTrue(link.isPermittedQueueId(43L));
+            assertEquals(1, link.prunePermittedQueueIds());
+            assertFalse(link.isPermittedQueueId(43L));
+        });
+    }
+
+    /**
+     * Test that a deactivated quietdown is not restored.
+     * @throws Throwable if something goes wrong
+     */
+    @Test
+    public void testDoesNotRestoreInactiveQuietdown() throws Throwable {
+        sessions.then(r -> {
+            SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+            link.performToggleQuietdown();
+            link.performToggleQuietdown();
+            QuietdownStateStore.get().save(link);
+        });
+        sessions.then(r -> {
+            assertFalse(SafeQuietdownManagementLink.get().isQuietdownActive());
+        });
+    }
+
+    /**
+     * Test that a quietdown activated for a scheduled window is still
+     * released at the end of the window after a restart.
+     * @throws Throwable if something goes wrong
+     */
+    @Test
+    public void testRestoresScheduledWindow() throws Throwable {
+        QuietdownWindowScheduler.setDisabled(true);
+        sessions.then(r -> {
+            QuietdownWindow window = new QuietdownWindow("0 3 * * *", WINDOW_DURATION_MINUTES);
+            SafeQuietdownConfiguration.get().setWindows(Collections.singletonList(window));
+            long start = window.getStartMillis(System.currentTimeMillis());
+            windowEnd = window.getEndMillis(start);
+            QuietdownWindowScheduler scheduler = QuietdownWindowScheduler.get();
+            scheduler.setClock(() -> start);
+            scheduler.check();
+            assertEquals(windowEnd, scheduler.getActiveWindowEnd());
+
+            SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+            int elapsedSeconds = 0;
+            while ((link.getState() == SafeQuietdownState.ACTIVATING) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+                TimeUnit.SECONDS.sleep(1);
+                elapsedSeconds++;
+            }
+            QuietdownStateStore.get().save(link);
+        });
+        sessions.then(r -> {
+            SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+            assertTrue(link.isQuietdownActive());
+            QuietdownWindowScheduler scheduler = QuietdownWindowScheduler.get();
+            assertEquals("window ownership restored", windowEnd, scheduler.getActiveWindowEnd());
+
+            scheduler.setClock(() -> windowEnd);
+            scheduler.check();
+            assertFalse("released at the end of the window", link.isQuietdownActive());
+        });
+    }
+
+    /**
+     * Test that a rolling drain survives a restart and releases the restored
+     * quietdown of its current wave.
+     * @throws Throwable if something goes wrong
+     */
+    @Test
+    public void testRestoresRollingDrain() throws Throwable {
+        sessions.then(r -> {
+            RollingDrain drain = new RollingDrain(Collections.singletonList("pending"),
+                                                  Collections.singletonList("wave"),
+                                                  Collections.<String>emptyList(), 1, 0, false,
+                                                  RollingDrainState.DRAINING, 1);
+            RollingDrainScheduler.get().restore(drain);
+            SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+            link.performToggleQuietdown(Label.parseExpression("wave"));
+            int elapsedSeconds = 0;
+            while ((link.getState() == SafeQuietdownState.ACTIVATING) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+                TimeUnit.SECONDS.sleep(1);
+                elapsedSeconds++;
+            }
+            QuietdownStateStore.get().save(link);
+        });
+        sessions.then(r -> {
+            RollingDrain drain = RollingDrainScheduler.get().getCurrent();
+            assertNotNull("rolling drain restored", drain);
+            assertEquals(1, drain.getWaveSize());
+
+            // The wave has no builds, so it is finished and the node that no longer exists is dropped
+            int elapsedSeconds = 0;
+            while (!drain.isDone() && (elapsedSeconds < TIMEOUT_SECONDS)) {
+                TimeUnit.SECONDS.sleep(1);
+                elapsedSeconds++;
+            }
+            assertEquals(RollingDrainState.FINISHED, drain.getState());
+            assertEquals(Collections.singletonList("wave"), drain.getDrainedNodes());
+            assertEquals(1, drain.getNumberOfWaves());
+            assertFalse("quietdown of the wave released", SafeQuietdownManagementLink.get().isQuietdownActive());
+        });
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Test class for the scheduled quietdown windows.
+ */
+public class QuietdownWindowSchedulerTest extends SafeQuietdownTestBase {
+
+    /**
+     * Jenkins rule instance.
+     */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private static final int WINDOW_HOUR = 3;
+    private static final int WINDOW_DURATION_MINUTES = 60;
+    private static final long LEAD_MARGIN_MINUTES = 5;
+
+    /** The clock driving the scheduler. */
+    private final AtomicLong clock = new AtomicLong();
+
+    /** The scheduler under test. */
+    private QuietdownWindowScheduler scheduler;
+
+    /**
+     * Disables the periodic checks and drives the scheduler with the test clock.
+     */
+    @Before
+    public void setUp() {
+        QuietdownWindowScheduler.setDisabled(true);
+        scheduler = QuietdownWindowScheduler.get();
+        scheduler.setClock(clock::get);
+    }
+
+    /**
+     * Enables the periodic checks again.
+     */
+    @After
+    public void tearDown() {
+        QuietdownWindowScheduler.setDisabled(false);
+    }
+
+    /**
+     * Test the start and end of a window.
+     */
+    @Test
+    public void testWindowStart() {
+        QuietdownWindow window = new QuietdownWindow("0 3 * * *", WINDOW_DURATION_MINUTES);
+        long start = getWindowStart();
+
+        assertEquals(start, window.getStartMillis(start - TimeUnit.HOURS.toMillis(1)));
+        assertEquals(start, window.getStartMillis(start + TimeUnit.MINUTES.toMillis(WINDOW_DURATION_MINUTES - 1)));
+        assertEquals(start + TimeUnit.DAYS.toMillis(1),
+                     window.getStartMillis(start + TimeUnit.MINUTES.toMillis(WINDOW_DURATION_MINUTES)));
+        assertEquals(-1, new QuietdownWindow("not a cron spec", WINDOW_DURATION_MINUTES).getStartMillis(start));
+    }
+
+    /**
+     * Test that an idle controller is quieted down only within the margin
+     * ahead of the window and released after the window.
+     */
+    @Test
+    public void testActivationAndRelease() {
+        SafeQuietdownConfiguration.get().setWindows(
+            Collections.singletonList(new QuietdownWindow("0 3 * * *", WINDOW_DURATION_MINUTES)));
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        long start = getWindowStart();
+
+        check(start - TimeUnit.HOURS.toMillis(1));
+        assertFalse("too early", link.isQuietdownActive());
+
+        check(start - TimeUnit.MINUTES.toMillis(LEAD_MARGIN_MINUTES - 1));
+        assertTrue("activated ahead of the window", link.isQuietdownActive());
+        assertEquals(start + TimeUnit.MINUTES.toMillis(WINDOW_DURATION_MINUTES), scheduler.getActiveWindowEnd());
+
+        check(start + TimeUnit.MINUTES.toMillis(WINDOW_DURATION_MINUTES - 1));
+        assertTrue("active during the window", link.isQuietdownActive());
+
+        check(start + TimeUnit.MINUTES.toMillis(WINDOW_DURATION_MINUTES));
+        assertFalse("released after the window", link.isQuietdownActive());
+        assertEquals(-1, scheduler.getActiveWindowEnd());
+    }
+
+    /**
+     * Test that a scheduled quietdown cancelled manually within the window
+     * is not activated again by the following checks of the same window.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testManualCancelWithinWindow() throws Exception {
+        SafeQuietdownConfiguration.get().setWindows(
+            Collections.singletonList(new QuietdownWindow("0 3 * * *", WINDOW_DURATION_MINUTES)));
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        long start = getWindowStart();
+
+        check(start - TimeUnit.MINUTES.toMillis(1));
+        waitForActive(link);
+
+        link.performToggleQuietdown();
+        check(start + TimeUnit.MINUTES.toMillis(1));
+        assertFalse(link.isQuietdownActive());
+        assertEquals(-1, scheduler.getActiveWindowEnd());
+
+        check(start + TimeUnit.MINUTES.toMillis(2));
+        assertFalse("not activated again within the window", link.isQuietdownActive());
+        assertEquals(start, scheduler.getActivatedStart());
+    }
+
+    /**
+     * Test that a quietdown activated manually is not released at the end of a window.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testManualQuietdown() throws Exception {
+        SafeQuietdownConfiguration.get().setWindows(
+            Collections.singletonList(new QuietdownWindow("0 3 * * *", WINDOW_DURATION_MINUTES)));
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        long start = getWindowStart();
+
+        link.performToggleQuietdown();
+        waitForActive(link);
+        check(start);
+        assertEquals("window does not take over a manual quietdown", -1, scheduler.getActiveWindowEnd());
+
+        check(start + TimeUnit.MINUTES.toMillis(WINDOW_DURATION_MINUTES));
+        assertTrue("manual quietdown is not released", link.isQuietdownActive());
+    }
+
+    /**
+     * Runs a check of the scheduler at the given time.
+     * @param now the time of the check in milliseconds
+     */
+    private void check(final long now) {
+        clock.set(now);
+        scheduler.check();
+    }
+
+    /**
+     * Waits until the activation of the safe quietdown mode is finished.
+     * @param link the management link
+     * @throws InterruptedException if interrupted
+     */
+    private static void waitForActive(final SafeQuietdownManagementLink link) throws InterruptedException {
+        int elapsedSeconds = 0;
+        while ((link.getState() != SafeQuietdownState.ACTIVE) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+        assertEquals(SafeQuietdownState.ACTIVE, link.getState());
+    }
+
+    /**
+     * Gets a start of the window at 3 AM in the future.
+     * @return the start of the window in milliseconds
+     */
+    private static long getWindowStart() {
+        Calendar start = Calendar.getInstance();
+        start.add(Calendar.DAY_OF_MONTH, 1);
+        start.set(Calendar.HOUR_OF_DAY, WINDOW_HOUR);
+        start.set(Calendar.MINUTE, 0);
+        start.set(Calendar.SECOND, 0);
+        start.set(Calendar.MILLISECOND, 0);
+        return start.getTimeInMillis();
+    }
+}
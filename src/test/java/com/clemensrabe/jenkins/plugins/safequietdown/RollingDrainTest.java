@@ -0,0 +1,220 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.DumbSlave;
+
+/**
+ * Test class for the rolling drain.
+ */
+public class RollingDrainTest extends SafeQuietdownTestBase {
+
+    /**
+     * Jenkins rule instance.
+     */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    /**
+     * Test that the agents are drained one after the other and taken offline.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testDrainsAgentsInWaves() throws Exception {
+        Label pool = Label.get("pool");
+        DumbSlave first = jenkinsRule.createOnlineSlave(pool);
+        DumbSlave second = jenkinsRule.createOnlineSlave(pool);
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get(first.getNodeName()));
+        project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> buildFuture = project.scheduleBuild2(0);
+        buildFuture.waitForStart();
+
+        RollingDrain drain = RollingDrainScheduler.get().start(pool, 1, 0, 0, true);
+        assertEquals(Arrays.asList(first.getNodeName(), second.getNodeName()), drain.getPendingNodes());
+        waitUntilDone(drain);
+
+        jenkinsRule.assertBuildStatusSuccess(buildFuture);
+        assertEquals(RollingDrainState.FINISHED, drain.getState());
+        assertEquals(2, drain.getNumberOfWaves());
+        assertTrue(first.toComputer().isTemporarilyOffline());
+        assertTrue(second.toComputer().isTemporarilyOffline());
+        assertFalse(SafeQuietdownManagementLink.get().isQuietdownActive());
+        assertEquals(Arrays.asList(first.getNodeName(), second.getNodeName()),
+                     DrainedNodesRecorder.get().drainedNodes);
+        assertEquals(Arrays.asList(true, true), DrainedNodesRecorder.get().activeOnWaveFinished);
+    }
+
+    /**
+     * Test that a wave is not started if it would reduce the available
+     * executors below the minimum.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testKeepsMinimumExecutors() throws Exception {
+        Label pool = Label.get("pool");
+        jenkinsRule.createOnlineSlave(pool);
+        jenkinsRule.jenkins.setNumExecutors(1);
+
+        RollingDrain drain = RollingDrainScheduler.get().start(pool, 1, 0, 2, false);
+        TimeUnit.SECONDS.sleep(QUIET_PERIOD);
+        assertEquals(RollingDrainState.WAITING, drain.getState());
+        assertEquals(0, drain.getNumberOfWaves());
+        assertNotNull(drain.getWaitingReason());
+
+        assertTrue(RollingDrainScheduler.get().cancel());
+        assertEquals(RollingDrainState.CANCELLED, drain.getState());
+        assertFalse(RollingDrainScheduler.get().cancel());
+    }
+
+    /**
+     * Test that only the free executors outside of the wave count for the
+     * minimum, so the wave waits while the other executors are busy.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testWaitsForFreeExecutors() throws Exception {
+        Label pool = Label.get("pool");
+        jenkinsRule.createOnlineSlave(pool);
+        jenkinsRule.jenkins.setNumExecutors(1);
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(jenkinsRule.jenkins.getSelfLabel());
+        project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+        QueueTaskFuture<FreeStyleBuild> buildFuture = project.scheduleBuild2(0);
+        buildFuture.waitForStart();
+
+        RollingDrain drain = RollingDrainScheduler.get().start(pool, 1, 0, 1, false);
+        TimeUnit.SECONDS.sleep(1);
+        assertEquals(RollingDrainState.WAITING, drain.getState());
+        assertNotNull(drain.getWaitingReason());
+
+        jenkinsRule.assertBuildStatusSuccess(buildFuture);
+        waitUntilDone(drain);
+        assertEquals(RollingDrainState.FINISHED, drain.getState());
+        assertNull(drain.getWaitingReason());
+    }
+
+    /**
+     * Test that permitted queue items that can't run on the nodes of a wave
+     * don't stall the rolling drain if all queued items are permitted.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testIgnoresQueueItemsOutsideOfWave() throws Exception {
+        Label pool = Label.get("pool");
+        DumbSlave agent = jenkinsRule.createOnlineSlave(pool);
+        SafeQuietdownConfiguration.get().setAllowAllQueuedItems(true);
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("elsewhere"));
+        project.scheduleBuild2(0);
+        waitForProjectInQueue(project);
+
+        RollingDrain drain = RollingDrainScheduler.get().start(pool, 1, 0, 0, false);
+        waitUntilDone(drain);
+
+        assertEquals(RollingDrainState.FINISHED, drain.getState());
+        assertEquals(Collections.singletonList(agent.getNodeName()), DrainedNodesRecorder.get().drainedNodes);
+        assertTrue(project.isInQueue());
+    }
+
+    /**
+     * Waits until the rolling drain is done.
+     * @param drain the rolling drain
+     * @throws InterruptedException if interrupted
+     */
+    private void waitUntilDone(final RollingDrain drain) throws InterruptedException {
+        int elapsedSeconds = 0;
+        while (!drain.isDone() && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+        assertTrue(drain.isDone());
+    }
+
+    /**
+     * Records the drained nodes.
+     */
+    @TestExtension
+    public static class DrainedNodesRecorder extends RollingDrainListener {
+
+        /** Names of the drained nodes. */
+        private final List<String> drainedNodes = Collections.synchronizedList(new ArrayList<String>());
+
+        /** Flags whether the quietdown was active while a wave was reported as finished. */
+        private final List<Boolean> activeOnWaveFinished = Collections.synchronizedList(new ArrayList<Boolean>());
+
+        /**
+         * Gets the registered instance.
+         * @return the listener
+         */
+        static DrainedNodesRecorder get() {
+            return RollingDrainListener.all().get(DrainedNodesRecorder.class);
+        }
+
+        /**
+         * Records the drained node.
+         * @param node the drained node
+         */
+        @Override
+        public void onNodeDrained(final Node node) {
+            drainedNodes.add(node.getNodeName());
+        }
+
+        /**
+         * Records whether the quietdown of the wave is still active.
+         * @param nodeNames the names of the nodes of the wave
+         */
+        @Override
+        public void onWaveFinished(final List<String> nodeNames) {
+            activeOnWaveFinished.add(SafeQuietdownManagementLink.get().isQuietdownActive());
+        }
+    }
+}
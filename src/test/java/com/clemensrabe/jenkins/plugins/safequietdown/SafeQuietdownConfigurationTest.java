@@ -28,8 +28,13 @@ import org.htmlunit.html.HtmlForm;
 import org.htmlunit.html.HtmlTextInput;
 import org.htmlunit.html.HtmlCheckBoxInput;
 
+import java.util.Collections;
+
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import org.junit.Rule;
 import org.jvnet.hudson.test.JenkinsSessionRule;
 
@@ -39,6 +44,8 @@ public class SafeQuietdownConfigurationTest {
     @Rule
     public JenkinsSessionRule sessions = new JenkinsSessionRule();
 
+    private static final int WINDOW_DURATION_MINUTES = 90;
+
     /**
      * Test the quietdown message configuration setting.
      */
@@ -82,4 +89,46 @@ public class SafeQuietdownConfigurationTest {
                          SafeQuietdownConfiguration.get().isAllowAllQueuedItems());
         });
     }
+
+    /**
+     * Test that the blockage is shared and shows the configured quietdown message.
+     */
+    @Test
+    public void testBlockage() throws Throwable {
+        sessions.then(r -> {
+            SafeQuietdownConfiguration config = SafeQuietdownConfiguration.get();
+            SafeQuietdownBlockage blockage = config.getBlockage();
+            assertSame("blockage is shared", blockage, config.getBlockage());
+            assertEquals(Messages.GoingToShutDown(), blockage.getShortDescription());
+
+            config.setQuietdownMessage("hello");
+            assertNotSame("blockage is recreated", blockage, config.getBlockage());
+            assertEquals("hello", config.getBlockage().getQuietdownMessage());
+            assertEquals("configured message is shown", "hello", config.getBlockage().getShortDescription());
+
+            config.setQuietdownMessage("");
+            assertEquals("default message without configured message", Messages.GoingToShutDown(),
+                         config.getBlockage().getShortDescription());
+        });
+    }
+
+    /**
+     * Test the scheduled quietdown windows setting.
+     */
+    @Test
+    public void testWindowsSetting() throws Throwable {
+        sessions.then(r -> {
+            assertTrue("no windows initially", SafeQuietdownConfiguration.get().getWindows().isEmpty());
+
+            SafeQuietdownConfiguration.get().setWindows(
+                Collections.singletonList(new QuietdownWindow("0 2 * * 6", WINDOW_DURATION_MINUTES)));
+            r.configRoundtrip();
+            assertEquals(1, SafeQuietdownConfiguration.get().getWindows().size());
+        });
+        sessions.then(r -> {
+            QuietdownWindow window = SafeQuietdownConfiguration.get().getWindows().get(0);
+            assertEquals("still there after restart of Jenkins", "0 2 * * 6", window.getSpec());
+            assertEquals(WINDOW_DURATION_MINUTES, window.getDurationMinutes());
+        });
+    }
 }
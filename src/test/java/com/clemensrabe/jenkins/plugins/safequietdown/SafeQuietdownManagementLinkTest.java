@@ -24,18 +24,29 @@
 
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
+import org.htmlunit.Page;
 import org.htmlunit.html.HtmlPage;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import org.junit.Rule;
 import org.jvnet.hudson.test.JenkinsSessionRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+
+import net.sf.json.JSONObject;
 
 public class SafeQuietdownManagementLinkTest {
 
@@ -57,6 +68,18 @@ public class SafeQuietdownManagementLinkTest {
     /** XPath to the link. */
     private static final String CANCEL_LINK_XPATH = "//a[@href='cancelsafequietdown']";
 
+    /** Duration of the running build in milliseconds. */
+    private static final int JOB_SLEEP_TIME = 10000;
+
+    /** Timeout of the activation in seconds. */
+    private static final int TIMEOUT_SECONDS = 30;
+
+    /** Queue id only contained in the snapshot of the superseded activation. */
+    private static final long STALE_QUEUE_ID = 4711L;
+
+    /** Poll interval in milliseconds. */
+    private static final int POLL_MILLIS = 100;
+
     /** XPath to the decorator message. */
     private static final String DECORATOR_XPATH = "//div[@id='safe-quietdown-msg']";
 
@@ -99,4 +122,235 @@ public class SafeQuietdownManagementLinkTest {
         queueIds.add(1L);
         assertTrue(managementLink.isAnyPermittedQueueId(queueIds));
     }
+
+    /**
+     * Test the transitions of the quietdown state.
+     */
+    @Test
+    public void testStateTransitions() throws Throwable {
+        SafeQuietdownManagementLink managementLink = new SafeQuietdownManagementLink();
+        assertEquals(SafeQuietdownState.INACTIVE, managementLink.getState());
+        assertFalse(managementLink.finishActivation());
+        assertFalse(managementLink.markDrained());
+
+        assertEquals(SafeQuietdownState.ACTIVATING, managementLink.toggleQuietdown());
+        assertTrue(managementLink.isQuietdownActive());
+        assertFalse(managementLink.markDrained());
+
+        assertTrue(managementLink.finishActivation());
+        assertEquals(SafeQuietdownState.ACTIVE, managementLink.getState());
+
+        assertTrue(managementLink.markDrained());
+        assertEquals(SafeQuietdownState.DRAINED, managementLink.getState());
+        assertTrue(managementLink.isQuietdownActive());
+
+        assertEquals(SafeQuietdownState.INACTIVE, managementLink.toggleQuietdown());
+        assertFalse(managementLink.isQuietdownActive());
+    }
+
+    /**
+     * Test that finished queue ids are removed from the permitted queue ids.
+     */
+    @Test
+    public void testPrunePermittedQueueIds() throws Throwable {
+        sessions.then(r -> {
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            managementLink.toggleQuietdown();
+            managementLink.finishActivation();
+            managementLink.addPermittedQueueId(1L);
+            managementLink.addPermittedQueueId(2L);
+            assertEquals(0, managementLink.prunePermittedQueueIds());
+
+            managementLink.markFinishedQueueId(1L);
+            assertEquals(1, managementLink.prunePermittedQueueIds());
+            assertFalse(managementLink.isPermittedQueueId(1L));
+            assertTrue(managementLink.isPermittedQueueId(2L));
+            assertEquals(1, managementLink.getNumberOfPermittedQueueIds());
+        });
+    }
+
+    /**
+     * Test that the snapshot of an activation cancelled before it finished
+     * is not merged into the permitted queue ids.
+     */
+    @Test
+    public void testCancelledActivationIsDiscarded() throws Throwable {
+        sessions.then(r -> {
+            FreeStyleProject project = r.createFreeStyleProject();
+            project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+            project.scheduleBuild2(0).waitForStart();
+
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            long completedTasks = ActivationExecutor.getCompletedTasks();
+            managementLink.performToggleQuietdown();
+            managementLink.performToggleQuietdown();
+
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            while ((ActivationExecutor.getCompletedTasks() == completedTasks)
+                   && (System.currentTimeMillis() < deadline)) {
+                TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+            }
+            assertEquals(SafeQuietdownState.INACTIVE, managementLink.getState());
+            assertEquals(0, managementLink.getNumberOfPermittedQueueIds());
+        });
+    }
+
+    /**
+     * Test that the snapshot of an activation that was superseded by turning
+     * the safe quietdown mode off and on again is not merged, but only the
+     * snapshot of the second activation.
+     */
+    @Test
+    public void testSupersededActivationIsDiscarded() throws Throwable {
+        sessions.then(r -> {
+            FreeStyleProject project = r.createFreeStyleProject();
+            project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+            FreeStyleBuild build = project.scheduleBuild2(0).waitForStart();
+
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            CountDownLatch release = blockActivationExecutor();
+            managementLink.performToggleQuietdown();
+            long firstActivation = managementLink.getActivation();
+
+            // Snapshot of the first activation, taken before the toggles
+            ConcurrentLongHashSet firstSnapshot = new ConcurrentLongHashSet();
+            QueueIndex.get().collectPermittedQueueIds(firstSnapshot);
+            firstSnapshot.add(STALE_QUEUE_ID);
+
+            managementLink.performToggleQuietdown();
+            managementLink.performToggleQuietdown();
+            assertEquals(SafeQuietdownState.ACTIVATING, managementLink.getState());
+
+            // The first activation resumes and tries to merge its snapshot
+            assertFalse(managementLink.mergeActivation(firstActivation, firstSnapshot));
+            assertEquals(SafeQuietdownState.ACTIVATING, managementLink.getState());
+            assertEquals(0, managementLink.getNumberOfPermittedQueueIds());
+            release.countDown();
+
+            waitForState(managementLink, SafeQuietdownState.ACTIVE);
+            assertFalse(managementLink.isPermittedQueueId(STALE_QUEUE_ID));
+            assertTrue(managementLink.isPermittedQueueId(build.getQueueId()));
+            assertEquals(1, managementLink.getNumberOfPermittedQueueIds());
+        });
+    }
+
+    /**
+     * Test that a build finishing while the safe quietdown mode is activating
+     * is marked as finished once the snapshot is merged.
+     */
+    @Test
+    public void testBuildFinishedDuringActivation() throws Throwable {
+        sessions.then(r -> {
+            FreeStyleProject project = r.createFreeStyleProject();
+            project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+            FreeStyleBuild build = project.scheduleBuild2(0).waitForStart();
+
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            CountDownLatch release = blockActivationExecutor();
+            managementLink.performToggleQuietdown();
+            assertEquals(SafeQuietdownState.ACTIVATING, managementLink.getState());
+
+            // The build is still running when the snapshot is taken, but
+            // reported as finished before the snapshot is merged
+            managementLink.markFinishedQueueId(build.getQueueId());
+            assertFalse(managementLink.isPermittedQueueId(build.getQueueId()));
+            release.countDown();
+
+            waitForState(managementLink, SafeQuietdownState.ACTIVE);
+            assertFalse(managementLink.isPermittedQueueId(build.getQueueId()));
+            assertEquals(0, managementLink.getNumberOfPermittedQueueIds());
+        });
+    }
+
+    /**
+     * Test that the quietdown is marked as drained once the last permitted
+     * build finished, without anybody polling the drain status.
+     */
+    @Test
+    public void testDrainedWhenLastBuildFinished() throws Throwable {
+        sessions.then(r -> {
+            FreeStyleProject project = r.createFreeStyleProject();
+            project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+            QueueTaskFuture<FreeStyleBuild> future = project.scheduleBuild2(0);
+            future.waitForStart();
+
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            managementLink.performToggleQuietdown();
+            waitForState(managementLink, SafeQuietdownState.ACTIVE);
+
+            future.get();
+            waitForState(managementLink, SafeQuietdownState.DRAINED);
+        });
+    }
+
+    /**
+     * Test that a failing snapshot still ends the activation and permits the
+     * running builds, instead of blocking every item forever.
+     */
+    @Test
+    public void testFailingSnapshotPermitsRunningBuilds() throws Throwable {
+        sessions.then(r -> {
+            FreeStyleProject project = r.createFreeStyleProject();
+            project.getBuildersList().add(new SleepBuilder(JOB_SLEEP_TIME));
+            FreeStyleBuild build = project.scheduleBuild2(0).waitForStart();
+
+            SafeQuietdownManagementLink managementLink = SafeQuietdownManagementLink.get();
+            managementLink.setSnapshotCollector(snapshot -> {
+                throw new IllegalStateException("Injected snapshot failure");
+            });
+            managementLink.performToggleQuietdown();
+
+            waitForState(managementLink, SafeQuietdownState.ACTIVE);
+            assertTrue(managementLink.isPermittedQueueId(build.getQueueId()));
+            assertEquals(1, managementLink.getNumberOfPermittedQueueIds());
+        });
+    }
+
+    /**
+     * Blocks the activation executor until the returned latch is released.
+     * @return the latch to release the executor
+     */
+    private static CountDownLatch blockActivationExecutor() {
+        final CountDownLatch release = new CountDownLatch(1);
+        ActivationExecutor.submit(() -> {
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return release;
+    }
+
+    /**
+     * Waits until the safe quietdown mode is in the given state.
+     * @param managementLink the management link
+     * @param expected the expected state
+     */
+    private static void waitForState(final SafeQuietdownManagementLink managementLink,
+                                     final SafeQuietdownState expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while ((managementLink.getState() != expected) && (System.currentTimeMillis() < deadline)) {
+            TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+        }
+        assertEquals(expected, managementLink.getState());
+    }
+
+    /**
+     * Test the drain progress stream ends with a finished event if nothing is running.
+     */
+    @Test
+    public void testProgress() throws Throwable {
+        sessions.then(r -> {
+            r.createWebClient().goTo("safequietdown");
+            Page page = r.createWebClient().goTo("cancelsafequietdown/progress?timeout=10", "application/x-ndjson");
+            String[] lines = page.getWebResponse().getContentAsString().trim().split("\n");
+            JSONObject event = JSONObject.fromObject(lines[lines.length - 1]);
+            assertTrue(event.getBoolean("finished"));
+            assertEquals(0, event.getInt("activeBuilds"));
+            assertEquals(0, event.getInt("buildableItems"));
+            assertEquals(0, event.getInt("blockedItems"));
+            assertTrue(event.has("timestamp"));
+        });
+    }
 }
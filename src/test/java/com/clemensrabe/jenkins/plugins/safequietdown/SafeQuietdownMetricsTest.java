@@ -0,0 +1,157 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for the telemetry of the safe quietdown mode.
+ */
+public class SafeQuietdownMetricsTest {
+
+    /** The metrics published by the provider. */
+    private Map<String, Metric> metrics;
+
+    /**
+     * Creates a provider recording the telemetry before every test.
+     */
+    @Before
+    public void setUp() {
+        metrics = new SafeQuietdownMetricProvider().getMetricSet().getMetrics();
+    }
+
+    /**
+     * Stops recording after every test.
+     */
+    @After
+    public void tearDown() {
+        SafeQuietdownMetrics.setRecorder(null);
+    }
+
+    /**
+     * Test counting the invocations and decisions.
+     */
+    @Test
+    public void testCounters() {
+        SafeQuietdownMetrics.recordInvocation();
+        SafeQuietdownMetrics.recordInvocation();
+        SafeQuietdownMetrics.recordDecision(DispatchDecision.BLOCKED, 100L);
+        SafeQuietdownMetrics.recordDecision(DispatchDecision.BLOCKED, 100L);
+        SafeQuietdownMetrics.recordDecision(DispatchDecision.DOWNSTREAM, 100L);
+
+        assertEquals(2, getMeter("dispatcher.invocations").getCount());
+        assertEquals(2, getMeter("decisions.blocked").getCount());
+        assertEquals(1, getMeter("decisions.downstream").getCount());
+        assertEquals(0, getMeter("decisions.permitted").getCount());
+    }
+
+    /**
+     * Test that invocations while the quietdown is inactive are counted as
+     * invocations and decisions but not timed.
+     */
+    @Test
+    public void testNotActive() {
+        SafeQuietdownMetrics.recordNotActive();
+        SafeQuietdownMetrics.recordInvocation();
+
+        assertEquals(2, getMeter("dispatcher.invocations").getCount());
+        assertEquals(1, getMeter("decisions.not_active").getCount());
+        assertEquals(0, getTimer("decision.latency").getCount());
+    }
+
+    /**
+     * Test the latency of the decisions.
+     */
+    @Test
+    public void testLatency() {
+        for (int i = 0; i < 99; i++) {
+            SafeQuietdownMetrics.recordDecision(DispatchDecision.PERMITTED, 100L);
+        }
+        SafeQuietdownMetrics.recordDecision(DispatchDecision.BLOCKED, 10000L);
+
+        Timer latency = getTimer("decision.latency");
+        assertEquals(100, latency.getCount());
+        Snapshot snapshot = latency.getSnapshot();
+        assertEquals(199.0, snapshot.getMean(), 0.0);
+        assertEquals(100.0, snapshot.getMedian(), 0.0);
+        assertEquals(10000, snapshot.getMax());
+    }
+
+    /**
+     * Test the duration of the activation tasks.
+     */
+    @Test
+    public void testActivationDuration() {
+        SafeQuietdownMetrics.recordActivation(TimeUnit.MILLISECONDS.toNanos(5));
+        SafeQuietdownMetrics.recordActivation(TimeUnit.MILLISECONDS.toNanos(15));
+
+        Timer duration = getTimer("activation.duration");
+        assertEquals(2, duration.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(15), duration.getSnapshot().getMax());
+    }
+
+    /**
+     * Test that nothing is recorded without a recorder.
+     */
+    @Test
+    public void testWithoutRecorder() {
+        SafeQuietdownMetrics.setRecorder(null);
+        SafeQuietdownMetrics.recordInvocation();
+        SafeQuietdownMetrics.recordDecision(DispatchDecision.BLOCKED, 100L);
+
+        assertEquals(0, getMeter("dispatcher.invocations").getCount());
+        assertEquals(0, getTimer("decision.latency").getCount());
+    }
+
+    /**
+     * Gets a published meter.
+     * @param name the name of the meter without prefix
+     * @return the meter
+     */
+    private Meter getMeter(final String name) {
+        return (Meter) metrics.get("jenkins.safequietdown." + name);
+    }
+
+    /**
+     * Gets a published timer.
+     * @param name the name of the timer without prefix
+     * @return the timer
+     */
+    private Timer getTimer(final String name) {
+        return (Timer) metrics.get("jenkins.safequietdown." + name);
+    }
+}
@@ -25,8 +25,10 @@
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import hudson.model.FreeStyleProject;
+import hudson.model.Label;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
 import org.jenkinsci.plugins.matrixauth.AuthorizationType;
@@ -44,6 +46,7 @@ import org.jvnet.hudson.test.JenkinsRule;
 
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 
 /**
  * Test class for high-level tests of the safe quietdown plugin using pipeline
@@ -215,4 +218,32 @@ public class SafeQuietdownPipelineTest extends SafeQuietdownTestBase {
         toggleSafeQuietdown();
         assertSuccessfulJobs(project);
     }
+
+    /**
+     * Tests that a pipeline started on other nodes after a safe quietdown
+     * restricted to a label was activated cannot put its steps onto the
+     * drained nodes.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testPipelineStartedAfterActivationCannotUseScopedNode() throws Exception {
+        jenkinsRule.createOnlineSlave(Label.get("drained"));
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        link.performToggleQuietdown(Label.parseExpression("drained"));
+        int elapsedSeconds = 0;
+        while ((link.getState() == SafeQuietdownState.ACTIVATING) && (elapsedSeconds < TIMEOUT_SECONDS)) {
+            TimeUnit.SECONDS.sleep(1);
+            elapsedSeconds++;
+        }
+
+        WorkflowJob project = jenkinsRule.getInstance().createProject(WorkflowJob.class, "p");
+        project.setDefinition(new CpsFlowDefinition("node('drained') { echo 'on drained node' }", true));
+        WorkflowRun run = project.scheduleBuild2(0).waitForStart();
+        TimeUnit.SECONDS.sleep(QUIET_PERIOD);
+        assertTrue(run.isBuilding());
+        jenkinsRule.assertLogNotContains("on drained node", run);
+
+        toggleSafeQuietdown();
+        jenkinsRule.assertBuildStatusSuccess(jenkinsRule.waitForCompletion(run));
+    }
 }
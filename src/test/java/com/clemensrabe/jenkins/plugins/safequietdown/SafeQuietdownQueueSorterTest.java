@@ -0,0 +1,105 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright (c) 2021 Clemens Rabe. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package com.clemensrabe.jenkins.plugins.safequietdown;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueSorter;
+
+/**
+ * Test class for the quietdown aware queue sorter.
+ */
+public class SafeQuietdownQueueSorterTest extends SafeQuietdownTestBase {
+
+    /**
+     * Jenkins rule instance.
+     */
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private static final int NUM_ITEMS = 4;
+
+    /**
+     * Test that the sorter is installed on startup.
+     */
+    @Test
+    public void testInstalled() {
+        assertTrue(Queue.getInstance().getSorter() instanceof SafeQuietdownQueueSorter);
+    }
+
+    /**
+     * Test that a replacement of the sorter by another plugin is detected.
+     */
+    @Test
+    public void testReplacedSorterIsDetected() {
+        assertTrue(SafeQuietdownQueueSorter.checkInstalled());
+        QueueSorter installed = Queue.getInstance().getSorter();
+
+        Queue.getInstance().setSorter(((SafeQuietdownQueueSorter) installed).getDelegate());
+        assertFalse(SafeQuietdownQueueSorter.checkInstalled());
+
+        Queue.getInstance().setSorter(installed);
+        assertTrue(SafeQuietdownQueueSorter.checkInstalled());
+    }
+
+    /**
+     * Test that permitted items are moved to the front only while the safe
+     * quietdown mode is active and that the order within the groups is kept.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testPermittedItemsFirst() throws Exception {
+        List<Queue.BuildableItem> items = new ArrayList<Queue.BuildableItem>();
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+            items.add(new Queue.BuildableItem(QueueFixtures.newWaitingItem(project)));
+        }
+        SafeQuietdownManagementLink link = SafeQuietdownManagementLink.get();
+        SafeQuietdownQueueSorter sorter = new SafeQuietdownQueueSorter(null);
+
+        // Nothing changes while the quietdown is inactive
+        List<Queue.BuildableItem> buildables = new ArrayList<Queue.BuildableItem>(items);
+        sorter.sortBuildableItems(buildables);
+        assertEquals(items, buildables);
+
+        QueueFixtures.activateQuietdown();
+        link.addPermittedQueueId(items.get(1).getId());
+        link.addPermittedQueueId(items.get(3).getId());
+        sorter.sortBuildableItems(buildables);
+        assertEquals(Arrays.asList(items.get(1), items.get(3), items.get(0), items.get(2)), buildables);
+    }
+}
@@ -25,6 +25,7 @@
 package com.clemensrabe.jenkins.plugins.safequietdown;
 
 import hudson.model.FreeStyleProject;
+import hudson.model.Label;
 import hudson.model.Result;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
 import org.jenkinsci.plugins.matrixauth.AuthorizationType;
@@ -33,10 +34,12 @@ import hudson.tasks.BuildTrigger;
 import jenkins.model.Jenkins;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import static org.junit.Assert.assertNull;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.SleepBuilder;
 
@@ -184,4 +187,34 @@ public class SafeQuietdownTest extends SafeQuietdownTestBase {
         toggleSafeQuietdown();
         assertSuccessfulJobs(project);
     }
+
+    /**
+     * Tests that a safe quietdown restricted to a label only blocks builds on
+     * the matching nodes.
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testScopedQuietdownBlocksOnlyMatchingNodes() throws Exception {
+        Label drained = Label.get("drained");
+        Label other = Label.get("other");
+        jenkinsRule.createOnlineSlave(drained);
+        jenkinsRule.createOnlineSlave(other);
+
+        FreeStyleProject drainedProject = jenkinsRule.createFreeStyleProject("drainedProject");
+        drainedProject.setAssignedLabel(drained);
+        FreeStyleProject otherProject = jenkinsRule.createFreeStyleProject("otherProject");
+        otherProject.setAssignedLabel(other);
+
+        SafeQuietdownManagementLink.get().performToggleQuietdown(Label.parseExpression("drained"));
+        drainedProject.scheduleBuild2(0);
+        otherProject.scheduleBuild2(0);
+
+        assertSuccessfulJobs(otherProject);
+        TimeUnit.SECONDS.sleep(QUIET_PERIOD);
+        assertNull(drainedProject.getLastBuild());
+
+        toggleSafeQuietdown();
+        assertNull(SafeQuietdownManagementLink.get().getScope());
+        assertSuccessfulJobs(drainedProject);
+    }
 }